@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of registering the builds of a parallel block in the graph of a flow, right after another parallel block
+ * whose branches ended with <code>fanIn</code> builds. Each invocation works on a fresh flow so the graph doesn't
+ * grow across the whole run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AddBuildBenchmark {
+
+    private static final int BRANCHES = 100;
+
+    @Param({"1", "10", "100", "1000"})
+    public int fanIn;
+
+    private FlowRun run;
+    private Set<JobInvocation> upstream;
+    private JobInvocation[] builds;
+
+    @Setup(Level.Invocation)
+    public void setup() throws Exception {
+        run = StandIns.flowRun("flow");
+        Set<JobInvocation> last = new HashSet<JobInvocation>();
+        for (int i = 0; i < fanIn; i++) {
+            JobInvocation job = StandIns.invocation(run, "upstream");
+            run.getState().setLastCompleted(run.getStartJob());
+            run.addBuild(job);
+            last.add(job);
+        }
+        upstream = run.joinBranches(last);
+        builds = new JobInvocation[BRANCHES];
+        for (int i = 0; i < BRANCHES; i++) {
+            builds[i] = StandIns.invocation(run, "branch");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BRANCHES)
+    public FlowRun addBuild() throws Exception {
+        for (JobInvocation job : builds) {
+            run.getState().setLastCompleted(upstream);
+            run.addBuild(job);
+        }
+        return run;
+    }
+}
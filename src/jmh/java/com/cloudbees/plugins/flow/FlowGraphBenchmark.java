@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.cloudbees.plugins.flow;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Footprint and concurrent registration throughput of the graph of generated flows, which can trigger tens of
+ * thousands of builds. The footprint is the allocation per operation the gc profiler reports for
+ * {@link #chain}, divided by <code>size</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FlowGraphBenchmark {
+
+    private static final int BUILDS_PER_BRANCH = 100;
+
+    /**
+     * Completed invocations, each one depending on the previous one, all for the same job.
+     */
+    @State(Scope.Thread)
+    public static class Chain {
+
+        @Param({"1000", "10000", "100000"})
+        public int size;
+
+        private JobInvocation[] jobs;
+
+        @Setup
+        public void setup() {
+            jobs = new JobInvocation[size];
+            for (int uid = 1; uid <= size; uid++) {
+                jobs[uid - 1] = new JobInvocation(null, uid, "job", uid, true, true, true);
+            }
+        }
+    }
+
+    /**
+     * A graph the builds of concurrent branches are registered in, after a common upstream.
+     * It is started over for each iteration, which registers a fixed number of branches so that it stays bounded.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        private final AtomicInteger uids = new AtomicInteger(1);
+        private FlowGraph graph;
+        private JobInvocation upstream;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            graph = new FlowGraph();
+            uids.set(1);
+            upstream = new JobInvocation(null, uids.getAndIncrement(), "job", 1, true, true, true);
+            graph.addVertex(upstream);
+        }
+    }
+
+    @Benchmark
+    public FlowGraph chain(Chain chain) {
+        FlowGraph graph = new FlowGraph();
+        JobInvocation previous = null;
+        for (JobInvocation job : chain.jobs) {
+            graph.addVertex(job);
+            if (previous != null) {
+                graph.addEdge(previous, job);
+            }
+            previous = job;
+        }
+        return graph;
+    }
+
+    /**
+     * Each invocation is a branch chaining {@link #BUILDS_PER_BRANCH} builds.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 10, batchSize = 100)
+    @Measurement(iterations = 20, batchSize = 100)
+    @Threads(8)
+    @OperationsPerInvocation(BUILDS_PER_BRANCH)
+    public JobInvocation concurrentRegistration(Shared shared) {
+        JobInvocation previous = shared.upstream;
+        for (int i = 0; i < BUILDS_PER_BRANCH; i++) {
+            JobInvocation job = new JobInvocation(null, shared.uids.getAndIncrement(), "job", i, true, true, true);
+            shared.graph.addVertex(job);
+            shared.graph.addEdge(previous, job);
+            previous = job;
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.Run;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of the build events FlowListener handles for every build of the instance, with <code>inFlight</code>
+ * downstream builds waited for by flows. It should not depend on <code>inFlight</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FlowListenerBenchmark {
+
+    // queue ids of the flows' builds, far from the ids of the unrelated build
+    private static final long FIRST_ID = 1L << 40;
+
+    @Param({"0", "1000", "10000", "100000"})
+    public int inFlight;
+
+    private final FlowListener listener = new FlowListener();
+    private Run<?, ?> unrelated;
+    private Run<?, ?> downstream;
+
+    @Setup
+    public void setup() {
+        FlowRun flow = StandIns.flowRun("flow");
+        JobInvocation job = StandIns.invocation(flow, "job");
+        for (long id = FIRST_ID; id < FIRST_ID + inFlight; id++) {
+            FlowListener.register(id, job);
+        }
+        unrelated = StandIns.build(42L);
+        downstream = StandIns.build(FIRST_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (long id = FIRST_ID; id < FIRST_ID + inFlight; id++) {
+            FlowListener.unregister(id);
+        }
+    }
+
+    @Benchmark
+    public void unrelatedBuild() {
+        listener.onStarted(unrelated, null);
+        listener.onCompleted(unrelated, null);
+    }
+
+    @Benchmark
+    public void downstreamBuild() {
+        listener.onStarted(downstream, null);
+        listener.onCompleted(downstream, null);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.Result;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static hudson.model.Result.SUCCESS;
+
+/**
+ * Cost of combining the results of <code>branches</code> parallel branches into the state of the flow,
+ * as parallel() does once they are done.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FlowStateBenchmark {
+
+    private static final Result[] RESULTS = {SUCCESS, SUCCESS, SUCCESS, Result.UNSTABLE, SUCCESS, Result.FAILURE};
+
+    @Param({"10", "1000"})
+    public int branches;
+
+    private FlowState[] states;
+    private JobInvocation start;
+
+    @Setup
+    public void setup() {
+        FlowRun run = StandIns.flowRun("flow");
+        start = run.getStartJob();
+        states = new FlowState[branches];
+        for (int i = 0; i < branches; i++) {
+            states[i] = new FlowState(RESULTS[i % RESULTS.length], StandIns.invocation(run, "job"));
+        }
+    }
+
+    @Benchmark
+    public Result combine() {
+        FlowState current = new FlowState(SUCCESS, start);
+        for (FlowState state : states) {
+            current.setResult(current.getResult().combine(state.getResult()));
+        }
+        return current.getResult();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.BooleanParameterDefinition;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.StringParameterDefinition;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of building the parameters of a triggered job from the arguments of <code>build()</code>,
+ * half of them set by the flow and the others left to their default value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GetActionsBenchmark {
+
+    @Param({"2", "20", "100"})
+    public int definitions;
+
+    private FlowDelegate delegate;
+    private Job<?, ?> job;
+    private Map<String, Object> args;
+
+    @Setup
+    public void setup() {
+        ParameterDefinition[] defs = new ParameterDefinition[definitions];
+        args = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < definitions; i++) {
+            String name = "param" + i;
+            if (i % 4 == 0) {
+                defs[i] = new BooleanParameterDefinition(name, false, "");
+            } else {
+                defs[i] = new StringParameterDefinition(name, "default" + i);
+            }
+            if (i % 2 == 0) {
+                args.put(name, i % 4 == 0 ? "true" : "value" + i);
+            }
+        }
+        job = StandIns.job("parameterized", defs);
+        delegate = StandIns.delegate(StandIns.flowRun("flow"));
+    }
+
+    @Benchmark
+    public Object getActions() {
+        return delegate.getActions(job, args);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.util.spring.ClosureScript;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of getting a runnable script for a flow DSL, as FlowDSL.executeFlowScript does on each run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScriptBenchmark {
+
+    private static final String DSL = ""
+            + "build(\"job1\", param1: build.number)\n"
+            + "parallel(\n"
+            + "    { build(\"job2\") },\n"
+            + "    { retry(3) { build(\"job3\") } },\n"
+            + ")\n"
+            + "guard {\n"
+            + "    build(\"job4\")\n"
+            + "} rescue {\n"
+            + "    build(\"cleanup\")\n"
+            + "}\n";
+
+    private final ClassLoader loader = ScriptBenchmark.class.getClassLoader();
+
+    @Benchmark
+    public ClosureScript compile() {
+        FlowScriptCache.get().clear();
+        return FlowScriptCache.get().createScript(DSL, loader);
+    }
+
+    @Benchmark
+    public ClosureScript cached() {
+        return FlowScriptCache.get().createScript(DSL, loader);
+    }
+}
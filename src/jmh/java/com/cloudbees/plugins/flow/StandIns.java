@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Run;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objenesis.ObjenesisStd;
+
+import static hudson.model.Result.SUCCESS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * In-memory stand-ins for the Jenkins objects the flow engine works with, so that benchmarks measure the engine
+ * rather than a Jenkins instance.
+ */
+final class StandIns {
+
+    private static final ObjenesisStd OBJENESIS = new ObjenesisStd();
+
+    private StandIns() {}
+
+    /**
+     * A flow run with an empty graph holding its start vertex, as FlowRun.setup() leaves it,
+     * but without a Jenkins instance nor a build directory.
+     */
+    static FlowRun flowRun(String name) {
+        BuildFlow project = mock(BuildFlow.class);
+        when(project.getFullName()).thenReturn(name);
+        when(project.getName()).thenReturn(name);
+
+        FlowRun run = OBJENESIS.newInstance(FlowRun.class);
+        set(Run.class, run, "project", project);
+        set(Run.class, run, "number", 1);
+        set(FlowRun.class, run, "buildIndex", new AtomicInteger(1));
+        set(FlowRun.class, run, "parallelBranches", new AtomicInteger());
+        set(FlowRun.class, run, "parallelSaturated", new AtomicBoolean());
+        set(FlowRun.class, run, "state", new ThreadLocal<FlowState>());
+        set(FlowRun.class, run, "graph", new FlowGraph());
+
+        JobInvocation start = invocation(run, name);
+        set(FlowRun.class, run, "startJob", start);
+        run.getFlowGraph().addVertex(start);
+        run.setState(new FlowState(SUCCESS, start));
+        return run;
+    }
+
+    /**
+     * A completed invocation of the named job in the given run.
+     */
+    static JobInvocation invocation(FlowRun run, String name) {
+        int uid = ((AtomicInteger) get(FlowRun.class, run, "buildIndex")).getAndIncrement();
+        return new JobInvocation(run, uid, name, uid, true, true, true);
+    }
+
+    /**
+     * A job with the given parameter definitions.
+     */
+    @SuppressWarnings("unchecked")
+    static Job<?, ?> job(String name, ParameterDefinition... definitions) {
+        Job job = mock(Job.class);
+        when(job.getFullName()).thenReturn(name);
+        when(job.getProperty(ParametersDefinitionProperty.class))
+                .thenReturn(new ParametersDefinitionProperty(definitions));
+        return job;
+    }
+
+    static FlowDelegate delegate(FlowRun run) {
+        BuildListener listener = mock(BuildListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return new FlowDelegate(run, listener, null, Collections.emptyMap());
+    }
+
+    /**
+     * A finished build of the given queue item.
+     */
+    static Run<?, ?> build(long queueId) {
+        Run<?, ?> run = mock(Run.class);
+        when(run.getQueueId()).thenReturn(queueId);
+        when(run.getNumber()).thenReturn(1);
+        when(run.getCauses()).thenReturn(Collections.<Cause>emptyList());
+        return run;
+    }
+
+    private static void set(Class<?> type, Object target, String field, Object value) {
+        try {
+            Field f = type.getDeclaredField(field);
+            f.setAccessible(true);
+            f.set(target, value);
+        } catch (Exception e) {
+            throw new IllegalStateException("Can't set " + type.getSimpleName() + "." + field, e);
+        }
+    }
+
+    private static Object get(Class<?> type, Object target, String field) {
+        try {
+            Field f = type.getDeclaredField(field);
+            f.setAccessible(true);
+            return f.get(target);
+        } catch (Exception e) {
+            throw new IllegalStateException("Can't read " + type.getSimpleName() + "." + field, e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+/**
+ * Nodes and edges declared in a <code>dag</code> block:
+ * <pre>
+ * dag {
+ *     node("compile")
+ *     node("test-core", "test", module: "core")
+ *     edge("compile", "test-core")
+ * }
+ * </pre>
+ * A node has an id, unique in the block, and builds a job with parameters. The job is the id by default.
+ */
+class DagDeclaration {
+
+    /* package */ static class Node {
+        final String id
+        final String job
+        final Map params
+
+        Node(String id, String job, Map params) {
+            this.id = id
+            this.job = job
+            this.params = params
+        }
+    }
+
+    /* package */ final Map<String, Node> nodes = new LinkedHashMap<String, Node>()
+
+    // successors of each node, by id
+    /* package */ final Map<String, Set<String>> edges = new LinkedHashMap<String, Set<String>>()
+
+    def node(String id) {
+        node([:], id, id)
+    }
+
+    def node(Map params, String id) {
+        node(params, id, id)
+    }
+
+    def node(String id, String job) {
+        node([:], id, job)
+    }
+
+    def node(Map params, String id, String job) {
+        if (nodes.containsKey(id)) {
+            throw new IllegalArgumentException("Node " + id + " is declared twice")
+        }
+        nodes[id] = new Node(id, job, params)
+        edges[id] = new LinkedHashSet<String>()
+    }
+
+    /**
+     * Declares that the targets only run once the source is done.
+     */
+    def edge(String source, String... targets) {
+        targets.each { target ->
+            if (!nodes.containsKey(source)) {
+                throw new IllegalArgumentException("Edge from undeclared node " + source)
+            }
+            if (!nodes.containsKey(target)) {
+                throw new IllegalArgumentException("Edge to undeclared node " + target)
+            }
+            edges[source].add(target)
+        }
+    }
+
+    /**
+     * Sorts the nodes so that each one comes after all of its predecessors.
+     *
+     * @throws IllegalArgumentException if the edges make a cycle
+     */
+    /* package */ List<Node> topologicalOrder() {
+        Map<String, Integer> incoming = new HashMap<String, Integer>()
+        nodes.keySet().each { incoming[it] = 0 }
+        edges.values().each { targets -> targets.each { incoming[it] = incoming[it] + 1 } }
+
+        LinkedList<String> ready = new LinkedList<String>(nodes.keySet().findAll { incoming[it] == 0 })
+        List<Node> sorted = new ArrayList<Node>(nodes.size())
+        while (!ready.isEmpty()) {
+            String id = ready.removeFirst()
+            sorted.add(nodes[id])
+            edges[id].each { target ->
+                incoming[target] = incoming[target] - 1
+                if (incoming[target] == 0) {
+                    ready.add(target)
+                }
+            }
+        }
+        if (sorted.size() < nodes.size()) {
+            def cyclic = nodes.keySet().findAll { incoming[it] > 0 }
+            throw new IllegalArgumentException("The dag has a cycle, these nodes can never run: " + cyclic.join(", "))
+        }
+        return sorted
+    }
+}
@@ -26,6 +26,7 @@
 package com.cloudbees.plugins.flow
 
 import hudson.AbortException
+import hudson.FilePath
 import hudson.console.ModelHyperlinkNote
 import hudson.model.*
 import hudson.security.ACL
@@ -35,17 +36,28 @@ import hudson.util.spring.ClosureScript
 import jenkins.model.Jenkins
 
 import org.acegisecurity.context.SecurityContextHolder
-import org.codehaus.groovy.control.CompilerConfiguration
-import org.codehaus.groovy.control.customizers.ImportCustomizer
+import org.codehaus.groovy.control.CompilationFailedException
 
 import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.locks.Condition
+import java.util.concurrent.locks.Lock
+import java.util.concurrent.locks.ReentrantLock
 import java.util.logging.Logger
 
 import static hudson.model.Result.FAILURE
 import static hudson.model.Result.SUCCESS
+import static hudson.model.Result.UNSTABLE
 
 public class FlowDSL {
 
+    private static final Logger LOGGER = Logger.getLogger(FlowDSL.class.getName());
+
+    /**
+     * How long, in seconds, an aborted flow waits for its downstream builds to abort before giving up its executor.
+     */
+    public static long ABORT_TIMEOUT = Long.getLong(FlowDSL.class.getName() + ".abortTimeout", 300L);
+
     def void executeFlowScript(FlowRun flowRun, String dsl, BuildListener listener) {
         // Retrieve the upstream build if the flow was triggered by another job
         Run upstream = null;
@@ -70,19 +82,38 @@ public class FlowDSL {
         FlowDelegate flow = new FlowDelegate(flowRun, listener, upstream, envMap)
 
 
-        // parse the script in such a way that it delegates to the flow object as default
-        def cc = new CompilerConfiguration();
-        cc.scriptBaseClass = ClosureScript.class.name;
-        def ic = new ImportCustomizer()
-        ic.addStaticStars(Result.class.name)
-        cc.addCompilationCustomizers(ic)
+        // resolve the jobs the script builds by name before anything runs, so that a typo doesn't fail the flow
+        // once its first builds are done
+        FlowAnalysis analysis = null
+        try {
+            analysis = FlowAnalysis.of(dsl)
+        } catch (CompilationFailedException e) {
+            // reported when the script is compiled
+        }
+        if (analysis != null) {
+            flowRun.analysis = analysis
+            def missing = analysis.resolve(flowRun.project.parent).findAll { name, refs -> refs.any { !it.conditional } }
+            if (!missing.isEmpty()) {
+                missing.each { name, refs ->
+                    listener.error("Item ${name} not found (or isn't a job). (line ${refs*.line.join(', ')})")
+                }
+                flowRun.state.result = FAILURE
+                return
+            }
+        }
 
-        ClosureScript dslScript = (ClosureScript)new GroovyShell(Jenkins.instance.pluginManager.uberClassLoader,new Binding(),cc).parse(dsl)
+        // compiled script classes are shared between runs, each run gets its own instance
+        ClosureScript dslScript = FlowScriptCache.get().createScript(dsl, Jenkins.instance.pluginManager.uberClassLoader)
         dslScript.setDelegate(flow);
 
         try {
             dslScript.run()
+            // async builds the script didn't join still belong to the flow
+            flow.join(flow.pendingBuilds)
+            flow.awaitFinalization()
         } catch(JobExecutionFailureException e) {
+            flow.awaitPendingBuilds()
+            flow.awaitFinalization()
             listener.println("flow failed to complete : " + flowRun.state.result)
         }
         catch (AbortException e) {
@@ -102,32 +133,56 @@ public class FlowDSL {
     private void killRunningJobs(FlowRun flowRun, BuildListener listener) {
         flowRun.state.result = Executor.currentExecutor().abortResult();
         Executor.currentExecutor().recordCauseOfInterruption(flowRun, listener);
+        if (FlowCheckpoint.isShuttingDown()) {
+            // the builds carry on, or stay queued, and the flow picks them up once Jenkins is back
+            listener.getLogger().println("Jenkins is shutting down, the flow will be resumed after the restart")
+            return
+        }
 
-        def graph = flowRun.jobsGraph
-        graph.vertexSet().each() { ji ->
-            if (flowRun.project != ji.project) {
-                // Our project is the fist JobInvocation and we would just be aborting ourselves again.
-                println("aborting ${ji.name}")
+        // Our project is the fist JobInvocation and we would just be aborting ourselves again.
+        def downstream = flowRun.flowGraph.vertices.findAll { ji -> flowRun.project != ji.project }
+        // remove all the queued builds at once, then abort the ones already running
+        def cancelled = flowRun.scheduler.cancelQueued(downstream)
+        long abortedAt = System.currentTimeMillis()
+        downstream.each() { ji ->
+            println("aborting ${ji.name}")
+            if (!cancelled.contains(ji)) {
                 ji.abort()
             }
         }
         // wait until all the downstream builds have aborted.
-        // we do this in a separate block as aborting a job may take some time to complete.
-        graph.vertexSet().each() { ji ->
-            if (ji.started && ! ji.completed) {
-                if (flowRun.project != ji.project) {
-                    // Our project is the fist JobInvocation and we can't schedule ourself to run
-                    // so we would have started but have no build.
-                    // so don't wait for our self which will cause an exception.
-                    println("Waiting for ${ji.name} to finish...")
-
-                    ji.waitForCompletion()
+        // we do this in a separate block as aborting a job may take some time to complete,
+        // all the builds share the same deadline so the flow doesn't keep its executor forever.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ABORT_TIMEOUT)
+        def stragglers = []
+        for (JobInvocation ji : downstream) {
+            if (!ji.started || ji.completed) {
+                continue
+            }
+            listener.getLogger().println("Waiting for ${ji.name} to finish...")
+            try {
+                if (!ji.waitForCompletion(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    stragglers.add(ji)
+                    continue
                 }
+            } catch (InterruptedException e) {
+                // aborted again, don't wait any longer
+                stragglers.add(ji)
+                deadline = System.nanoTime()
+                continue
             }
+            Run r = ji.build
+            long latency = Math.max(0L, r.getStartTimeInMillis() + r.getDuration() - abortedAt)
+            listener.getLogger().println("${ji.name} #${r.number} aborted in ${latency} ms")
+        }
+        stragglers.each { JobInvocation ji ->
+            listener.getLogger().println("${ji.name} #${ji.build.number} is still running ${ABORT_TIMEOUT}s after the abort, not waiting for it")
+        }
+        if (!stragglers.isEmpty()) {
+            LOGGER.warning("${flowRun.fullDisplayName}: ${stragglers.size()} downstream build(s) did not abort within ${ABORT_TIMEOUT}s: ${stragglers*.name}")
         }
         listener.getLogger().println(hudson.model.Messages.Run_BuildAborted());
     }
-    // TODO define a parseFlowScript to validate flow DSL and maintain jobs dependencygraph
 }
 
 @SuppressWarnings("GroovyUnusedDeclaration")
@@ -140,6 +195,16 @@ public class FlowDelegate {
     int indent = 0
     private Run upstream;
     private Map env;
+    private final Lock printLock = new ReentrantLock()
+
+    // async builds, guarded by asyncLock as parallel branches share this delegate
+    private final Lock asyncLock = new ReentrantLock()
+    private final Condition asyncFinished = asyncLock.newCondition()
+    private final Set<JobInvocation> pending = new LinkedHashSet<JobInvocation>()
+    private final Set<JobInvocation> finished = new LinkedHashSet<JobInvocation>()
+    private final Map<JobInvocation, List<Closure>> callbacks = new HashMap<JobInvocation, List<Closure>>()
+    // completed builds the flow moved on from before they were finalized
+    private final Set<JobInvocation> finalizing = Collections.newSetFromMap(new ConcurrentHashMap<JobInvocation, Boolean>())
 
     public FlowDelegate(FlowRun flowRun, BuildListener listener, upstream, env) {
         this.flowRun = flowRun
@@ -154,12 +219,18 @@ public class FlowDelegate {
     }
 
     // TODO Assuring proper indent should be done in the listener?
-    def synchronized println_with_indent(Closure f) {
-        for (int i = 0; i < indent; ++i) {
-            out.print("    ")
+    def println_with_indent(Closure f) {
+        // not a monitor, so branches running on virtual threads don't pin their carrier while logging
+        printLock.lock()
+        try {
+            for (int i = 0; i < indent; ++i) {
+                out.print("    ")
+            }
+            f()
+            out.println()
+        } finally {
+            printLock.unlock()
         }
-        f()
-        out.println()
     }
 
     def println(String s) {
@@ -197,6 +268,21 @@ public class FlowDelegate {
         return env
     }
 
+    /**
+     * Runs a helper script read from the workspace of the flow, with the same DSL as the flow script,
+     * and returns what it returns. The file is only transferred again, and compiled again, when it changed.
+     */
+    def load(String path) {
+        FilePath workspace = flowRun.workspace
+        if (workspace == null) {
+            throw new IllegalStateException("load(\"${path}\") needs the flow to run with a workspace")
+        }
+        String text = WorkspaceFileCache.get().read(workspace.child(path))
+        ClosureScript script = FlowScriptCache.get().createScript(text, Jenkins.instance.pluginManager.uberClassLoader)
+        script.setDelegate(this)
+        return script.run()
+    }
+
     /**
      * Check flow status and stop if unexpected failure is detected
      */
@@ -206,15 +292,65 @@ public class FlowDelegate {
         }
     }
 
+    /**
+     * Registers a build with the fail-fast parallel block running it, if any. Stops the branch if a sibling
+     * branch already failed.
+     */
+    private FlowCancellation track(JobInvocation job) {
+        FlowCancellation cancellation = flowRun.state.cancellation
+        if (cancellation != null && !cancellation.track(job)) {
+            println("${job.name} not scheduled, a parallel branch failed")
+            fail()
+        }
+        return cancellation
+    }
+
+    private void abortIfCancelled(FlowCancellation cancellation, JobInvocation job) {
+        if (cancellation != null && cancellation.isCancelled()) {
+            cancellation.cancelLate(job, flowRun.scheduler)
+        }
+    }
+
     def build(Map args, String jobName) {
         statusCheck()
         // ask for job with name ${name}
         JobInvocation job = new JobInvocation(flowRun, jobName)
         Job p = job.getProject()
+        Map params = new LinkedHashMap(args)
+        boolean reuse = takeFlag(p, params, "reuse") == Boolean.TRUE
+        Boolean continueOption = takeFlag(p, params, "continueOnCompletion")
+        boolean continueOnCompletion = continueOption != null ? continueOption : flowRun.continuingOnCompletion
         println("Schedule job " + ModelHyperlinkNote.encodeTo(p))
 
-        flowRun.schedule(job, getActions(p,args));
-        Run r = job.waitForStart()
+        List<Action> actions = getActions(p, params)
+        if (reuse) {
+            Run previous = BuildReuseIndex.lookup(job.project, actions, listener)
+            if (previous != null) {
+                flowRun.reuse(job, previous)
+                println("Build " + ModelHyperlinkNote.encodeTo('/'+ previous.getUrl(), previous.getFullDisplayName())
+                        + " reused, its parameters and SCM revision are unchanged")
+                return job
+            }
+        }
+        FlowCancellation cancellation = track(job)
+        flowRun.schedule(job, actions);
+        abortIfCancelled(cancellation, job)
+        if (job.coalesced) {
+            println("${jobName} coalesced with an identical build")
+        }
+        if (job.resumed) {
+            println("${jobName} resumed from the interrupted run")
+        }
+        Run r
+        try {
+            r = job.waitForStart()
+        } catch (CancellationException e) {
+            if (!job.cancelled) {
+                throw e
+            }
+            println("${jobName} cancelled")
+            fail()
+        }
         println("Build " + ModelHyperlinkNote.encodeTo('/'+ r.getUrl(), r.getFullDisplayName()) + " started")
 
         if (null == r) {
@@ -223,6 +359,12 @@ public class FlowDelegate {
         }
 
         flowRun.waitForCompletion(job);
+        if (continueOnCompletion && !job.finalized) {
+            finalizeInBackground(job)
+            println(ModelHyperlinkNote.encodeTo('/'+ r.getUrl(), r.getFullDisplayName())
+                    + " completed ${r.result.isWorseThan(SUCCESS) ? " : " + r.result : ""}, finalizing in the background")
+            return job;
+        }
         // [JENKINS-22960] wait for build to be finalized.
         flowRun.waitForFinalization(job);
         println(ModelHyperlinkNote.encodeTo('/'+ r.getUrl(), r.getFullDisplayName())
@@ -230,77 +372,330 @@ public class FlowDelegate {
         return job;
     }
 
-    def getActions(Job job, Map args) {
+    /**
+     * Keeps track of a completed build the flow doesn't wait for, until it is finalized.
+     */
+    private void finalizeInBackground(JobInvocation job) {
+        finalizing.add(job)
+        job.whenFinished({ finalizing.remove(job) } as Runnable)
+    }
 
-        List<Action> originalActions = job.getActions();
+    /**
+     * Waits for the builds being finalized in the background, so that the flow doesn't finish before them.
+     */
+    /* package */ void awaitFinalization() {
+        for (JobInvocation job : new ArrayList<JobInvocation>(finalizing)) {
+            job.waitForFinalization()
+        }
+    }
 
-        List<ParameterDefinition> jobParams = null;
-        for(Action action:originalActions) {
-            if (action instanceof ParametersDefinitionProperty) {
-                ParametersDefinitionProperty parametersAction = (ParametersDefinitionProperty) action;
-                jobParams = parametersAction.getParameterDefinitions();
+    /**
+     * Removes a flow option from the arguments of a build call and returns it. A parameter of the job with
+     * the same name is left to the build.
+     */
+    private static Object takeOption(Job p, Map args, String name) {
+        if (!args.containsKey(name) || ParameterDefinitionIndex.of(p).get(name) != null) {
+            return null
+        }
+        return args.remove(name)
+    }
+
+    /**
+     * Like {@link #takeOption}, for an option that is either <code>true</code> or <code>false</code>, given as a
+     * boolean or a string. <code>null</code> when not set.
+     */
+    private static Boolean takeFlag(Job p, Map args, String name) {
+        Object value = takeOption(p, args, name)
+        if (value == null || value instanceof Boolean) {
+            return (Boolean) value
+        }
+        String s = value.toString().trim()
+        if (s.equalsIgnoreCase("true") || s.equalsIgnoreCase("false")) {
+            return Boolean.valueOf(s)
+        }
+        throw new IllegalArgumentException(name + " must be true or false, got " + value)
+    }
+
+    def buildAsync(String jobName) {
+        buildAsync([:], jobName)
+    }
+
+    /**
+     * Schedules a job and returns its handle right away, without waiting for the build.
+     * The handle is then passed to {@link #join} or {@link #joinAny} to wait for it.
+     */
+    def buildAsync(Map args, String jobName) {
+        statusCheck()
+        JobInvocation job = new JobInvocation(flowRun, jobName)
+        Job p = job.getProject()
+        Map params = new LinkedHashMap(args)
+        boolean reuse = takeFlag(p, params, "reuse") == Boolean.TRUE
+        // joining an async build waits for its finalization anyway
+        takeFlag(p, params, "continueOnCompletion")
+        println("Schedule job " + ModelHyperlinkNote.encodeTo(p) + " (async)")
+
+        List<Action> actions = getActions(p, params)
+        Run previous = reuse ? BuildReuseIndex.lookup(job.project, actions, listener) : null
+        FlowCancellation cancellation = previous == null ? track(job) : null
+        asyncLock.lock()
+        try {
+            pending.add(job)
+        } finally {
+            asyncLock.unlock()
+        }
+        if (previous != null) {
+            flowRun.reuse(job, previous)
+            println("Build " + ModelHyperlinkNote.encodeTo('/'+ previous.getUrl(), previous.getFullDisplayName())
+                    + " reused, its parameters and SCM revision are unchanged")
+        } else {
+            flowRun.scheduleAsync(job, actions)
+            abortIfCancelled(cancellation, job)
+        }
+        if (job.coalesced) {
+            println("${jobName} coalesced with an identical build")
+        }
+        if (job.resumed) {
+            println("${jobName} resumed from the interrupted run")
+        }
+        job.whenFinished({
+            asyncLock.lock()
+            try {
+                finished.add(job)
+                asyncFinished.signalAll()
+            } finally {
+                asyncLock.unlock()
             }
+        } as Runnable)
+        return job
+    }
+
+    /**
+     * Waits for all the given async builds, in the order they complete, and runs their onComplete callbacks.
+     * The next builds of the flow are chained after all of them.
+     */
+    def List<JobInvocation> join(Collection<JobInvocation> handles) {
+        Set<JobInvocation> last = new LinkedHashSet<JobInvocation>()
+        Set<JobInvocation> waiting = new LinkedHashSet<JobInvocation>()
+        handles.each { JobInvocation job -> isPending(job) ? waiting.add(job) : last.add(job) }
+        if (waiting.isEmpty() && last.isEmpty()) {
+            return []
         }
-        
-        List<Action> actions = new ArrayList<Action>();
-        List<ParameterValue> params = [];
-        Set<String> addedParams = new HashSet<String>();
-        for (Map.Entry param: args) {
-            String paramName = param.key
-            Object paramValue = param.value
-            if (paramValue instanceof Closure) {
-                paramValue = getClosureValue(paramValue)
+
+        println("join {")
+        ++indent
+        try {
+            while (!waiting.isEmpty()) {
+                JobInvocation job = awaitAny(waiting)
+                waiting.remove(job)
+                last.addAll(complete(job))
             }
-            //Use pre-defined parameter type if it exists and it's simple
-            if (jobParams != null) {
-                for (ParameterDefinition originalParam: jobParams) {
-                    if (originalParam instanceof SimpleParameterDefinition) {
-                        if (paramName.equals(originalParam.name)) {
-                            try {
-                                params.add(originalParam.createValue(paramValue));
-                                addedParams.add(paramName);
-                            } catch (Exception e) {
-                                //This usually means that createValue(String) is
-                                //unimplemented and we can't use the definition.
-                            }
-                        }
+        } finally {
+            --indent
+            println("}")
+        }
+        flowRun.state.lastCompleted = flowRun.joinBranches(last)
+        return new ArrayList<JobInvocation>(handles)
+    }
+
+    def List<JobInvocation> join(JobInvocation... handles) {
+        join(Arrays.asList(handles))
+    }
+
+    /**
+     * Waits for the first of the given async builds to complete, runs its onComplete callbacks and returns it.
+     * Handles that were already joined are skipped, so calling it repeatedly consumes builds as they complete.
+     *
+     * @return the completed build, or null if all of them were joined already
+     */
+    def JobInvocation joinAny(Collection<JobInvocation> handles) {
+        Set<JobInvocation> waiting = new LinkedHashSet<JobInvocation>(handles.findAll { isPending(it) })
+        if (waiting.isEmpty()) {
+            return null
+        }
+        JobInvocation job = awaitAny(waiting)
+        flowRun.state.lastCompleted = complete(job)
+        return job
+    }
+
+    def JobInvocation joinAny(JobInvocation... handles) {
+        joinAny(Arrays.asList(handles))
+    }
+
+    /**
+     * Registers a callback run with the build once it is joined, in the thread that joins it.
+     * Builds triggered by the callback are chained after that build.
+     */
+    def onComplete(JobInvocation handle, Closure callback) {
+        onComplete([handle], callback)
+    }
+
+    def onComplete(Collection<JobInvocation> handles, Closure callback) {
+        // the callback may run in another branch, it still belongs to the one registering it
+        FlowState registering = flowRun.state
+        Closure scoped = { JobInvocation job ->
+            flowRun.state.cancellation = registering.cancellation
+            flowRun.state.criticalPath = registering.criticalPath
+            callback.call(job)
+        }
+        handles.each { JobInvocation job ->
+            boolean registered = false
+            asyncLock.lock()
+            try {
+                if (pending.contains(job)) {
+                    List<Closure> list = callbacks.get(job)
+                    if (list == null) {
+                        list = new ArrayList<Closure>()
+                        callbacks.put(job, list)
                     }
+                    list.add(scoped)
+                    registered = true
                 }
+            } finally {
+                asyncLock.unlock()
             }
-            if (addedParams.contains(paramName)) {
-                //Added the parameter already, so go on to the next one
-                continue;
+            if (!registered) {
+                // already joined
+                callback.call(job)
             }
-            if (paramValue instanceof Boolean) {
-                params.add(new BooleanParameterValue(paramName, (Boolean) paramValue))
+        }
+    }
+
+    /**
+     * Async builds not joined yet.
+     */
+    def List<JobInvocation> getPendingBuilds() {
+        asyncLock.lock()
+        try {
+            return new ArrayList<JobInvocation>(pending)
+        } finally {
+            asyncLock.unlock()
+        }
+    }
+
+    /**
+     * Waits for the remaining async builds without running their callbacks, as the flow is failing anyway.
+     */
+    /* package */ void awaitPendingBuilds() {
+        for (JobInvocation job : getPendingBuilds()) {
+            try {
+                job.waitForFinalization()
+                flowRun.state.result = flowRun.state.result.combine(resultOf(job))
+            } catch (ExecutionException e) {
+                flowRun.state.result = FAILURE
             }
-            else {
-                params.add(new StringParameterValue(paramName, paramValue.toString()))
+        }
+    }
+
+    private boolean isPending(JobInvocation job) {
+        asyncLock.lock()
+        try {
+            return pending.contains(job)
+        } finally {
+            asyncLock.unlock()
+        }
+    }
+
+    private JobInvocation awaitAny(Collection<JobInvocation> candidates) {
+        asyncLock.lock()
+        try {
+            while (true) {
+                // builds in the order they were finalized, or left the queue without running
+                for (JobInvocation job : finished) {
+                    if (candidates.contains(job)) {
+                        return job
+                    }
+                }
+                asyncFinished.await()
             }
-            addedParams.add(paramName);
-            //TODO For now we only support String and boolean parameters
+        } finally {
+            asyncLock.unlock()
         }
+    }
 
-        /* Add default values from defined params in the target job */
-        
-        if (jobParams != null) {
+    /**
+     * Records the result of a joined async build and runs its callbacks.
+     *
+     * @return the builds the next ones should be chained after
+     */
+    private Set<JobInvocation> complete(JobInvocation job) {
+        List<Closure> listeners
+        asyncLock.lock()
+        try {
+            pending.remove(job)
+            finished.remove(job)
+            listeners = callbacks.remove(job)
+        } finally {
+            asyncLock.unlock()
+        }
+
+        Result result = resultOf(job)
+        if (job.started) {
+            Run r = job.build
+            println(ModelHyperlinkNote.encodeTo('/'+ r.getUrl(), r.getFullDisplayName())
+                    + " completed ${result.isWorseThan(SUCCESS) ? " : " + result : ""}")
+        } else {
+            println("${job.name} left the queue without running")
+        }
+        FlowState current = flowRun.state
+        current.result = current.result.combine(result)
+        if (listeners == null) {
+            return Collections.singleton(job)
+        }
 
-            for (ParameterDefinition originalParam: jobParams) {
+        flowRun.state = new FlowState(SUCCESS, job)
+        try {
+            listeners.each { it.call(job) }
+            return flowRun.state.lastCompleted
+        } finally {
+            current.result = current.result.combine(flowRun.state.result)
+            flowRun.state = current
+        }
+    }
 
-                String paramName = originalParam.getName()
-                ParameterValue originalParamValue = originalParam.getDefaultParameterValue();
+    private static Result resultOf(JobInvocation job) {
+        try {
+            return job.result
+        } catch (CancellationException e) {
+            return Result.ABORTED
+        }
+    }
 
-                if (addedParams.contains(paramName)){
-                    //Already filled parameter
-                    continue;
-                }
+    def getActions(Job job, Map args) {
+
+        ParameterDefinitionIndex jobParams = ParameterDefinitionIndex.of(job);
 
-                params.add(originalParamValue)
+        List<ParameterValue> params = new ArrayList<ParameterValue>(args.size());
+        Set<String> addedParams = new HashSet<String>();
+        for (Map.Entry param: args) {
+            String paramName = param.key
+            Object paramValue = param.value
+            if (paramValue instanceof Closure) {
+                paramValue = getClosureValue(paramValue)
             }
+            //Use pre-defined parameter type if it exists and it's simple
+            ParameterValue value = jobParams.createValue(paramName, paramValue)
+            if (value == null) {
+                if (paramValue instanceof Boolean) {
+                    value = new BooleanParameterValue(paramName, (Boolean) paramValue)
+                }
+                else {
+                    value = new StringParameterValue(paramName, paramValue.toString())
+                }
+                //TODO For now we only support String and boolean parameters
+            }
+            params.add(value)
+            addedParams.add(paramName);
         }
 
+        /* Add default values from defined params in the target job */
+        jobParams.addDefaults(params, addedParams)
+
+        List<Action> actions = [new ParametersAction(params)]
+        long criticalPath = flowRun.state.criticalPath
+        if (criticalPath > 0 && CriticalPathQueueSorter.ENABLED) {
+            actions.add(new CriticalPathAction(criticalPath))
+        }
         //Additionnal parameters not available in the target job
-        actions.add(new ParametersAction(params));
         return actions
     }
 
@@ -396,87 +791,498 @@ public class FlowDelegate {
 
     // allows syntax like : parallel(["Kohsuke","Nicolas"].collect { name -> return { build("job1", param1:name) } })
     def List<FlowState> parallel(Collection<? extends Closure> closures) {
-        parallel(closures as Closure[])
+        parallel([:], closures as Closure[])
+    }
+
+    def List<FlowState> parallel(Map options, Collection<? extends Closure> closures) {
+        parallel(options, closures as Closure[])
     }
 
     // allows collecting job status by name rather than by index
     // inspired by https://github.com/caolan/async#parallel
-    def Map<?, FlowState> parallel(Map<?, ? extends Closure> args) {
+    // options such as failFast can be mixed in : parallel(failFast: true, a: { ... }, b: { ... })
+    def Map<?, FlowState> parallel(Map<?, ?> args) {
+        def options  = [:]
         def keys     = new ArrayList<?>()
         def closures = new ArrayList<? extends Closure>()
         args.entrySet().each { e ->
-          keys.add(e.key)
-          closures.add(e.value)
+          if (e.value instanceof Closure) {
+            keys.add(e.key)
+            closures.add(e.value)
+          } else {
+            options[e.key] = e.value
+          }
         }
         def results = new LinkedHashMap<?, FlowState>()
-        def flowStates = parallel(closures) // as List<FlowState>
+        // keys naming jobs tell how long the branches are expected to take
+        def flowStates = runParallel(options, closures as Closure[], keys as Object[]) // as List<FlowState>
         flowStates.eachWithIndex { v, i -> results[keys[i]] = v }
         results
     }
 
     def List<FlowState> parallel(Closure ... closures) {
+        parallel([:], closures)
+    }
+
+    def List<FlowState> parallel(Map options, Closure ... closures) {
+        runParallel(options, closures, null)
+    }
+
+    /**
+     * Runs the closures in parallel. Supported options:
+     * <ul>
+     * <li>failFast: <code>true</code>, or the result from which a branch is considered failed. Once a branch fails,
+     * the builds of the other branches are aborted and their result doesn't count.</li>
+     * <li>maxConcurrent: how many branches run at the same time at most, the next one starts as soon as one
+     * finishes. All of them by default.</li>
+     * <li>order: <code>'longestFirst'</code> starts the branches expected to take the longest first, and has their
+     * builds carry their critical path as a queue priority hint. Branches are expected to take as long as the job
+     * they are hinted with, branches hinted with no known job go last.</li>
+     * </ul>
+     * The states of the branches are returned in the order of the closures.
+     *
+     * @param hints per branch, a job or the name of a job it builds, or <code>null</code>
+     */
+    private List<FlowState> runParallel(Map options, Closure[] closures, Object[] hints) {
         statusCheck()
-        // TODO use NamingThreadFactory since Jenkins 1.541
-        ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                def thread = Executors.defaultThreadFactory().newThread(r);
-                thread.name = "BuildFlow parallel statement thread for " + flowRun.parent.fullName;
-                return thread;
-            }
-        });
+        ParallelExecutor executor = ParallelExecutor.get()
+        Result failFast = failFastThreshold(options.failFast)
+        int maxConcurrent = closures.length
+        if (options.maxConcurrent != null) {
+            maxConcurrent = options.maxConcurrent as int
+            if (maxConcurrent < 1) {
+                throw new IllegalArgumentException("maxConcurrent must be at least 1, got " + maxConcurrent)
+            }
+        }
+        boolean longestFirst = false
+        if (options.order != null) {
+            if (options.order != 'longestFirst') {
+                throw new IllegalArgumentException("Unknown order " + options.order + ", only longestFirst is supported")
+            }
+            longestFirst = true
+        }
         Set<Run> upstream = flowRun.state.lastCompleted
         Set<Run> lastCompleted = Collections.synchronizedSet(new HashSet<Run>())
-        def results = new CopyOnWriteArrayList<FlowState>()
-        def tasks = new ArrayList<Future<FlowState>>()
+        def current_state = flowRun.state
 
-        println("parallel {")
+        List<Integer> order = (0..<closures.length).toList()
+        long[] estimates = null
+        long longest = 0
+        long enclosing = current_state.criticalPath
+        if (longestFirst) {
+            estimates = estimateBranches(hints, closures.length)
+            // stable, branches expected to take as long keep their order
+            order.sort { a, b -> estimates[b] <=> estimates[a] }
+            for (long estimate : estimates) {
+                longest = Math.max(longest, estimate)
+            }
+            if (enclosing <= 0) {
+                enclosing = longest
+            }
+        }
+        FlowCancellation cancellation = failFast != null
+                ? new FlowCancellation(current_state.cancellation) : current_state.cancellation
+        def states = new FlowState[closures.length]
+        def finished = new AtomicIntegerArray(closures.length)
+        // branches report here as they finish, so that the first failure is seen as soon as possible,
+        // and the next branch is started as soon as a slot is free
+        def done = new LinkedBlockingQueue<Integer>()
+        def tasks = new Future[closures.length]
+        def results = new FlowState[closures.length]
+
+        def flags = []
+        if (failFast != null) {
+            flags.add("failFast: ${failFast}")
+        }
+        if (maxConcurrent < closures.length) {
+            flags.add("maxConcurrent: ${maxConcurrent}")
+        }
+        if (longestFirst) {
+            flags.add("order: longestFirst")
+        }
+        println(flags.isEmpty() ? "parallel {" : "parallel(${flags.join(', ')}) {")
         ++indent
 
-        def current_state = flowRun.state
         try {
-
-            closures.each {closure ->
+            int next = 0
+            int running = 0
+            def submitNext = {
+                int i = order[next++]
+                def branch_state = new FlowState(SUCCESS, upstream)
+                branch_state.cancellation = cancellation
+                // the slack of a branch is how much shorter than the longest one it is expected to be
+                branch_state.criticalPath = longestFirst
+                        ? enclosing - (longest - Math.max(0L, estimates[i])) : current_state.criticalPath
+                states[i] = branch_state
+                if (cancellation != null && cancellation.isCancelled()) {
+                    // not started yet, no need to
+                    branch_state.cancelled = true
+                    results[i] = branch_state
+                    return
+                }
+                def closure = closures[i]
                 Closure<FlowState> track_closure = {
                     def ctx = ACL.impersonate(ACL.SYSTEM)
+                    // pooled threads are shared between flows, and a saturated pool runs the branch in the caller
+                    def thread = Thread.currentThread()
+                    def threadName = thread.name
+                    def previous = flowRun.state
                     try {
-                        flowRun.state = new FlowState(SUCCESS, upstream)
+                        thread.name = "BuildFlow parallel statement thread for " + flowRun.parent.fullName
+                        flowRun.state = branch_state
                         closure()
                         lastCompleted.addAll(flowRun.state.lastCompleted)
                         return flowRun.state
                     } finally {
+                        flowRun.state = previous
+                        thread.name = threadName
                         SecurityContextHolder.setContext(ctx)
+                        finished.set(i, 1)
+                        done.add(i)
                     }
                 }
 
-                tasks.add(pool.submit(track_closure as Callable))
+                running++
+                tasks[i] = executor.submit(flowRun, listener, track_closure as Callable)
             }
 
-            tasks.each {task ->
+            while (running < maxConcurrent && next < closures.length) {
+                submitNext()
+            }
+            while (running > 0) {
+                int i = done.take()
+                running--
+                Result result = null
                 try {
-                    def final_state = task.get()
-                    Result result = final_state.result
-                    results.add(final_state)
+                    def final_state = tasks[i].get()
+                    results[i] = final_state
+                    if (!final_state.cancelled) {
+                        result = final_state.result
+                    }
+                } catch(ExecutionException e) {
+                    if (states[i].cancelled) {
+                        results[i] = states[i]
+                    } else {
+                        // TODO perhaps rethrow?
+                        result = FAILURE
+                        listener.error("Failed to run DSL Script")
+                        e.printStackTrace(listener.getLogger())
+                    }
+                }
+                if (result != null) {
                     current_state.result = current_state.result.combine(result)
-                } catch(ExecutionException e)
-                {
-                    // TODO perhaps rethrow?
-                    current_state.result = FAILURE
-                    listener.error("Failed to run DSL Script")
-                    e.printStackTrace(listener.getLogger())
+                    if (failFast != null && result.isWorseOrEqualTo(failFast) && !cancellation.cancelled) {
+                        cancelBranches(cancellation, states, finished)
+                    }
+                }
+                while (running < maxConcurrent && next < closures.length) {
+                    submitNext()
                 }
             }
 
-            pool.shutdown()
-            pool.awaitTermination(1, TimeUnit.DAYS)
-            current_state.lastCompleted =lastCompleted
+            current_state.lastCompleted = flowRun.joinBranches(lastCompleted)
+            return results.findAll { it != null }
         } finally {
             flowRun.state = current_state
             --indent
             println("}")
         }
+    }
+
+    /**
+     * Runs the body for each item, at most maxConcurrent at the same time, and returns the states of the branches
+     * in the order of the items:
+     * <pre>
+     * parallelEach(modules, 10) { module -> build("test", module: module) }
+     * </pre>
+     */
+    def List<FlowState> parallelEach(Collection<?> items, int maxConcurrent, Closure body) {
+        parallelEach([:], items, maxConcurrent, body)
+    }
+
+    def List<FlowState> parallelEach(Map options, Collection<?> items, int maxConcurrent, Closure body) {
+        def closures = items.collect { item -> { -> body.call(item) } }
+        runParallel(options + [maxConcurrent: maxConcurrent], closures as Closure[], items as Object[])
+    }
+
+    /**
+     * Runs the body for each entry of the map, with the key and value of the entry, or with the entry if the body
+     * takes a single argument. The states of the branches are returned by key.
+     */
+    def Map<?, FlowState> parallelEach(Map<?, ?> items, int maxConcurrent, Closure body) {
+        parallelEach([:], items, maxConcurrent, body)
+    }
+
+    def Map<?, FlowState> parallelEach(Map options, Map<?, ?> items, int maxConcurrent, Closure body) {
+        def keys = new ArrayList<?>(items.keySet())
+        def closures = items.entrySet().collect { e ->
+            body.maximumNumberOfParameters > 1 ? { -> body.call(e.key, e.value) } : { -> body.call(e) }
+        }
+        def flowStates = runParallel(options + [maxConcurrent: maxConcurrent], closures as Closure[], keys as Object[])
+        def results = new LinkedHashMap<?, FlowState>()
+        flowStates.eachWithIndex { v, i -> results[keys[i]] = v }
+        results
+    }
+
+    /**
+     * Runs each item through the stages, in sequence, independently of the other items: an item enters the next
+     * stage as soon as it is done with the previous one, rather than once all the items are.
+     * <pre>
+     * pipeline(modules,
+     *     compile: { module -> build("compile", module: module) },
+     *     test:    { module -> build("test", module: module) }
+     * )
+     * </pre>
+     * An item that fails a stage doesn't go through the next ones. The options of {@link #parallel} can be mixed
+     * with the stages, and apply to the items.
+     *
+     * @return for each stage, the states of the items that went through it, by item
+     */
+    def Map<?, Map<?, FlowState>> pipeline(Map<?, ?> stages, Collection<?> items) {
+        pipeline(items, stages)
+    }
+
+    def Map<?, Map<?, FlowState>> pipeline(Collection<?> items, Map<?, ?> stages) {
+        def options = [:]
+        def names   = new ArrayList<?>()
+        def bodies  = new ArrayList<Closure>()
+        stages.entrySet().each { e ->
+            if (e.value instanceof Closure) {
+                names.add(e.key)
+                bodies.add(e.value)
+            } else {
+                options[e.key] = e.value
+            }
+        }
+        if (bodies.isEmpty()) {
+            throw new IllegalArgumentException("pipeline needs at least one stage")
+        }
+        def itemList = new ArrayList<?>(items)
+        // per stage, the state of each item, in the order of the items
+        def stageStates = bodies.collect { new FlowState[itemList.size()] }
+
+        def closures = (0..<itemList.size()).collect { int i ->
+            return { ->
+                def item = itemList[i]
+                def branch = flowRun.state
+                for (int s = 0; s < bodies.size() && !branch.result.isWorseThan(SUCCESS); s++) {
+                    // chained after the previous stage of the same item only
+                    def stage = new FlowState(SUCCESS, branch.lastCompleted)
+                    stage.cancellation = branch.cancellation
+                    stage.criticalPath = branch.criticalPath
+                    flowRun.state = stage
+                    try {
+                        bodies[s].call(item)
+                    } finally {
+                        flowRun.state = branch
+                        stageStates[s][i] = stage
+                        branch.result = branch.result.combine(stage.result)
+                        branch.lastCompleted = stage.lastCompleted
+                    }
+                }
+            }
+        }
+        runParallel(options, closures as Closure[], itemList as Object[])
+
+        def results = new LinkedHashMap<?, Map<?, FlowState>>()
+        names.eachWithIndex { name, s ->
+            def byItem = new LinkedHashMap<?, FlowState>()
+            Result result = SUCCESS
+            stageStates[s].eachWithIndex { state, i ->
+                if (state != null) {
+                    byItem[itemList[i]] = state
+                    result = result.combine(state.result)
+                }
+            }
+            results[name] = byItem
+            println("// ${name}: ${result}, ${byItem.size()} of ${itemList.size()} items")
+        }
         return results
     }
 
+    /**
+     * Runs the nodes of a declared graph of builds, each one as soon as all its predecessors are done:
+     * <pre>
+     * dag(maxConcurrent: 4) {
+     *     node("compile")
+     *     ["core", "web"].each { m ->
+     *         node("test-" + m, "test", module: m)
+     *         edge("compile", "test-" + m)
+     *     }
+     * }
+     * </pre>
+     * The graph is checked for cycles, and all of its builds are added to the jobs graph before any of them runs.
+     * The successors of a node that fails are skipped, and flagged cancelled. Supported options:
+     * <ul>
+     * <li>maxConcurrent: how many builds run at the same time at most. All the ready ones by default.</li>
+     * </ul>
+     *
+     * @return the build of each node, by id
+     */
+    def Map<String, JobInvocation> dag(Closure declaration) {
+        dag([:], declaration)
+    }
+
+    def Map<String, JobInvocation> dag(Map options, Closure declaration) {
+        statusCheck()
+        int maxConcurrent = Integer.MAX_VALUE
+        if (options.maxConcurrent != null) {
+            maxConcurrent = options.maxConcurrent as int
+            if (maxConcurrent < 1) {
+                throw new IllegalArgumentException("maxConcurrent must be at least 1, got " + maxConcurrent)
+            }
+        }
+        DagDeclaration dag = new DagDeclaration()
+        declaration.delegate = dag
+        declaration.resolveStrategy = Closure.DELEGATE_FIRST
+        declaration()
+        List<DagDeclaration.Node> nodes = dag.topologicalOrder()
+
+        // the whole plan goes to the jobs graph first, then runs by it
+        Map<String, JobInvocation> jobs = new LinkedHashMap<String, JobInvocation>()
+        Map<JobInvocation, DagDeclaration.Node> declared = new HashMap<JobInvocation, DagDeclaration.Node>()
+        nodes.each { node ->
+            JobInvocation job = new JobInvocation(flowRun, node.job)
+            jobs[node.id] = job
+            declared[job] = node
+        }
+        Map<JobInvocation, List<JobInvocation>> predecessors = new HashMap<JobInvocation, List<JobInvocation>>()
+        dag.edges.each { source, targets ->
+            targets.each { target ->
+                List<JobInvocation> list = predecessors[jobs[target]]
+                if (list == null) {
+                    predecessors[jobs[target]] = list = new ArrayList<JobInvocation>()
+                }
+                list.add(jobs[source])
+            }
+        }
+        List<JobInvocation> plan = nodes.collect { jobs[it.id] }
+        flowRun.addPlan(plan, predecessors)
+        Map<JobInvocation, List<JobInvocation>> successors = flowRun.successorsOf(plan)
+        Map<JobInvocation, Integer> waiting = new HashMap<JobInvocation, Integer>()
+        plan.each { waiting[it] = 0 }
+        successors.values().each { next -> next.each { waiting[it] = waiting[it] + 1 } }
+
+        LinkedList<JobInvocation> ready = new LinkedList<JobInvocation>(plan.findAll { waiting[it] == 0 })
+        Set<JobInvocation> running = new LinkedHashSet<JobInvocation>()
+        Set<JobInvocation> skipped = new HashSet<JobInvocation>()
+        Set<JobInvocation> sinks = new LinkedHashSet<JobInvocation>()
+        // builds in the order they were finalized, or left the queue without running
+        BlockingQueue<JobInvocation> finished = new LinkedBlockingQueue<JobInvocation>()
+
+        println(options.maxConcurrent != null ? "dag(maxConcurrent: ${maxConcurrent}) {" : "dag {")
+        ++indent
+        try {
+            while (!ready.isEmpty() || !running.isEmpty()) {
+                while (!ready.isEmpty() && running.size() < maxConcurrent) {
+                    JobInvocation scheduled = ready.removeFirst()
+                    FlowCancellation cancellation = track(scheduled)
+                    println("Schedule job " + ModelHyperlinkNote.encodeTo(scheduled.project) + " (" + declared[scheduled].id + ")")
+                    flowRun.schedulePlanned(scheduled, getActions(scheduled.project, declared[scheduled].params))
+                    abortIfCancelled(cancellation, scheduled)
+                    scheduled.whenFinished({ finished.add(scheduled) } as Runnable)
+                    running.add(scheduled)
+                }
+
+                JobInvocation job = finished.take()
+                if (!running.remove(job)) {
+                    continue
+                }
+                Result result = resultOf(job)
+                if (job.started) {
+                    Run r = job.build
+                    println(ModelHyperlinkNote.encodeTo('/'+ r.getUrl(), r.getFullDisplayName())
+                            + " completed ${result.isWorseThan(SUCCESS) ? " : " + result : ""}")
+                } else {
+                    println("${job.name} left the queue without running")
+                }
+                flowRun.state.result = flowRun.state.result.combine(result)
+                if (successors[job].isEmpty()) {
+                    sinks.add(job)
+                }
+                if (result.isWorseThan(SUCCESS)) {
+                    skipDescendants(job, successors, skipped)
+                    continue
+                }
+                successors[job].each { next ->
+                    waiting[next] = waiting[next] - 1
+                    if (waiting[next] == 0 && !skipped.contains(next)) {
+                        ready.add(next)
+                    }
+                }
+            }
+        } finally {
+            --indent
+            println("}")
+        }
+        if (!skipped.isEmpty()) {
+            println("// skipped: " + plan.findAll { skipped.contains(it) }.collect { declared[it].id }.join(", "))
+        }
+        if (!sinks.isEmpty()) {
+            flowRun.state.lastCompleted = flowRun.joinBranches(sinks)
+        }
+        return jobs
+    }
+
+    private static void skipDescendants(JobInvocation job, Map<JobInvocation, List<JobInvocation>> successors,
+                                        Set<JobInvocation> skipped) {
+        LinkedList<JobInvocation> next = new LinkedList<JobInvocation>(successors[job])
+        while (!next.isEmpty()) {
+            JobInvocation descendant = next.removeFirst()
+            if (skipped.add(descendant)) {
+                descendant.markCancelled()
+                next.addAll(successors[descendant])
+            }
+        }
+    }
+
+    /**
+     * Expected duration of each branch, from the job it is hinted with, -1 when unknown.
+     */
+    private long[] estimateBranches(Object[] hints, int branches) {
+        long[] estimates = new long[branches]
+        Arrays.fill(estimates, -1L)
+        if (hints == null) {
+            return estimates
+        }
+        ItemGroup context = flowRun.project.parent
+        hints.eachWithIndex { hint, i ->
+            AbstractProject p = null
+            if (hint instanceof AbstractProject) {
+                p = hint
+            } else if (hint instanceof CharSequence) {
+                p = Jenkins.instance.getItem(hint.toString(), context, AbstractProject.class)
+            }
+            if (p != null) {
+                estimates[i] = flowRun.scheduler.estimateDuration(p)
+            }
+        }
+        return estimates
+    }
+
+    private static Result failFastThreshold(value) {
+        if (value == null || value == false) {
+            return null
+        }
+        if (value == true) {
+            // any result but SUCCESS stops the flow after the block anyway
+            return UNSTABLE
+        }
+        return value instanceof Result ? value : Result.fromString(value.toString())
+    }
+
+    private void cancelBranches(FlowCancellation cancellation, FlowState[] states, AtomicIntegerArray finished) {
+        int branches = 0
+        states.eachWithIndex { state, i ->
+            if (finished.get(i) == 0) {
+                state.cancelled = true
+                branches++
+            }
+        }
+        def aborted = cancellation.cancel(flowRun.scheduler)
+        println("// a branch failed, cancelling ${branches} branches and ${aborted.size()} builds")
+    }
+
     /**
      * Access the build flow DSL extensions that come from other plugins.
      *
@@ -26,11 +26,11 @@
 package com.cloudbees.plugins.flow;
 
 import hudson.model.*
-import hudson.model.queue.QueueTaskFuture;
 import jenkins.model.Jenkins;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.Condition;
@@ -55,17 +55,42 @@ public class JobInvocation {
 
     private transient Run build;
 
-    private transient QueueTaskFuture<? extends AbstractBuild<?, ?>> future;
+    private transient Future<? extends Run<?, ?>> future;
 
-    private final Lock lock;
-    private final Condition finalizedCond;
+    // id of the queue item, FlowListener dispatches build events to this invocation through it
+    private transient long queueId;
+
+    // Waiting threads park on this condition rather than on the queue future's monitor,
+    // so flows running on virtual threads don't pin their carrier thread while waiting.
+    // Only created once something waits on the invocation, most of them are never waited on.
+    private transient volatile Lock lock;
+    private transient Condition stateChanged;
 
     // Whether the build has started. If true, this.build should be set.
-    private boolean started;
+    private volatile boolean started;
+
+    // Whether the queue item left the queue without running, no build event will follow.
+    private transient volatile boolean dequeued;
     // Whether the build has completed
-    private boolean completed;
+    private volatile boolean completed;
     // Whether the build has completed
-    private boolean finalized;
+    private volatile boolean finalized;
+    // Whether the build was aborted, or never ran, because a sibling branch of a fail-fast parallel block failed
+    private volatile boolean cancelled;
+    // Whether the invocation follows an identical build scheduled before it, rather than a build of its own
+    private transient volatile boolean coalesced;
+    // Whether a previous build with the same inputs stands for this invocation, nothing was built
+    private volatile boolean reused;
+    // Whether the invocation stands for a build of the interrupted run this one resumes
+    private volatile boolean resumed;
+    // Matches the invocation with a build of the interrupted run a resumed flow replays, see FlowCheckpoint
+    private transient String replayKey;
+
+    private transient List<Runnable> finalizationListeners;
+
+    // kept once the build is finalized, instead of the build itself
+    private transient Result result;
+    private transient String displayName;
 
     private final int uid
 
@@ -74,8 +99,20 @@ public class JobInvocation {
         this.run = run;
         this.name = project.getFullName();
         this.project = project;
-        this.lock = new ReentrantLock();
-        this.finalizedCond = lock.newCondition();
+    }
+
+    /**
+     * Restores an invocation of a past run, as recorded by {@link JobsGraphFile}.
+     */
+    /* package */ JobInvocation(FlowRun run, int uid, String name, int buildNumber,
+                                boolean started, boolean completed, boolean finalized) {
+        this.uid = uid;
+        this.run = run;
+        this.name = name;
+        this.buildNumber = buildNumber;
+        this.started = started;
+        this.completed = completed;
+        this.finalized = finalized;
     }
 
     public JobInvocation(FlowRun run, String name) {
@@ -92,11 +129,14 @@ public class JobInvocation {
     }
 
     /* package */ JobInvocation run(Cause cause, List<Action> actions) {
-        future = project.scheduleBuild2(project.getQuietPeriod(), cause, actions);
+        if (project.isBuildable()) {
+            future = getScheduler().schedule(this, project, cause, actions);
+        }
         if (future == null) {
             // XXX this will mark the build as failed - perhaps aborting would be a better option?
             throw new CouldNotScheduleJobException("Could not schedule job "
-                    + project.getName() +", ensure it is not already queued with the same parameters or is not disabled");
+                    + project.getName() +", ensure it is not already queued with the same parameters or is not disabled"
+                    + " (or have the flow coalesce identical builds)");
         }
         return this;
     }
@@ -108,28 +148,11 @@ public class JobInvocation {
      * @return <code>true</code> if the run was aborted
      */
     /* package */ boolean abort() {
-        def aborted = false
-        if (!started) {
-            // Need to search the queue for the correct job and cancel it in
-            // the queue.
-            def queue = Jenkins.instance.queue
-            for (queueItem in queue.items) {
-                if (future == queueItem.getFuture()) {
-                    aborted = queue.cancel(queueItem)
-                    break;
-                }
-            }
-        }
-        else if (!completed) {
-            // as the task has already started we want to be kinder in recording the cause.
-            def cause = new FlowAbortedCause(flowRun);
-            def executor = build.executor ?: build.oneOffExecutor;
-            if (executor != null) {
-                executor.interrupt(Result.ABORTED, cause)
-                aborted = true;
-             }
-        }
-        return aborted;
+        return getScheduler().abort(this);
+    }
+
+    /* package */ FlowScheduler getScheduler() {
+        return run != null ? run.getScheduler() : JenkinsQueueScheduler.INSTANCE;
     }
 
     /**
@@ -147,6 +170,9 @@ public class JobInvocation {
     }
 
     public Result getResult() throws ExecutionException, InterruptedException {
+        if (result != null) {
+            return result;
+        }
         waitForCompletion();
         return getBuild().getResult();
     }
@@ -155,28 +181,118 @@ public class JobInvocation {
         return getResult().toString().toLowerCase();
     }
 
-    /* package */ Run getFlowRun() {
+    /* package */ FlowRun getFlowRun() {
         return run;
     }
 
     /* package */ void buildStarted(Run build) {
-        this.started = true;
         this.build = build;
         this.buildNumber = build.getNumber();
+        this.started = true;
+        signalAll();
     }
 
     /* package */ void buildCompleted() {
         this.completed = true;
+        signalAll();
+    }
+
+    /**
+     * The queue item left the queue without running.
+     */
+    /* package */ void buildCancelled() {
+        this.dequeued = true;
+        finished();
     }
 
     /* package */ void buildFinalized() {
-        this.lock.lock();
+        Run b = this.build;
+        if (b != null) {
+            this.result = b.getResult();
+            this.displayName = b.getDisplayName();
+        }
+        if (getScheduler().isPersistent()) {
+            // the build can be looked up again by number, only keep what is needed to report on it
+            this.build = null;
+            this.future = null;
+        }
+        this.finalized = true;
+        finished();
+    }
+
+    /**
+     * Wakes up the threads waiting on this invocation, and runs the listeners waiting for it to be finished.
+     */
+    private void finished() {
+        List<Runnable> listeners = null;
+        Lock l = this.lock;
+        if (l != null) {
+            l.lock();
+            try {
+                this.stateChanged.signalAll();
+                listeners = this.finalizationListeners;
+                this.finalizationListeners = null;
+            } finally {
+                l.unlock();
+            }
+        }
+        if (listeners != null) {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting on this invocation. The state must be updated beforehand: threads that
+     * start waiting after the lock was read here see the new state.
+     */
+    private void signalAll() {
+        Lock l = this.lock;
+        if (l != null) {
+            l.lock();
+            try {
+                this.stateChanged.signalAll();
+            } finally {
+                l.unlock();
+            }
+        }
+    }
+
+    private Lock getLock() {
+        Lock l = this.lock;
+        if (l == null) {
+            synchronized (this) {
+                l = this.lock;
+                if (l == null) {
+                    l = new ReentrantLock();
+                    this.stateChanged = l.newCondition();
+                    this.lock = l;
+                }
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Runs the listener once the build is finalized or the item left the queue without running,
+     * right away if it already has.
+     */
+    /* package */ void whenFinished(Runnable listener) {
+        Lock l = getLock();
+        l.lock();
         try {
-            this.finalized = true;
-            this.finalizedCond.signal();
+            if (!finalized && !leftQueue()) {
+                if (finalizationListeners == null) {
+                    finalizationListeners = new ArrayList<Runnable>();
+                }
+                finalizationListeners.add(listener);
+                return;
+            }
         } finally {
-            this.lock.unlock();
+            l.unlock();
         }
+        listener.run();
     }
 
     public String getName() {
@@ -184,7 +300,8 @@ public class JobInvocation {
     }
 
     public String getDisplayName() {
-        return (build != null ? build.displayName : "");
+        Run b = build;
+        return (b != null ? b.displayName : (displayName != null ? displayName : ""));
     }
 
     public boolean isStarted() {
@@ -199,6 +316,116 @@ public class JobInvocation {
         return finalized;
     }
 
+    /**
+     * Whether the build was aborted, or removed from the queue, by a fail-fast parallel block.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /* package */ void markCancelled() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Whether the invocation shares the build of an identical invocation, of this flow or another one,
+     * that was queued or running when it was scheduled.
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    /* package */ void markCoalesced() {
+        this.coalesced = true;
+    }
+
+    /**
+     * Whether the invocation reuses a previous successful build with the same inputs rather than scheduling one.
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    /* package */ void markReused() {
+        this.reused = true;
+    }
+
+    /**
+     * Whether the invocation stands for a build triggered by the interrupted run this one resumes.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /* package */ void markResumed() {
+        this.resumed = true;
+    }
+
+    /**
+     * Has the invocation stand for a build of the interrupted run the flow resumes: the build is reused if the
+     * interrupted run saw it complete, and followed if it is still running or queued.
+     *
+     * @return <code>false</code> if the build has to be triggered again
+     */
+    /* package */ boolean resume(FlowCheckpoint.Entry entry) {
+        AbstractProject p = getProject()
+        Run b = entry.buildNumber > 0 ? p.getBuildByNumber(entry.buildNumber) : null
+        if (entry.completed) {
+            if (b == null || b.isBuilding()) {
+                return false
+            }
+            // the build belongs to the flow, unlike a reused one
+            markResumed()
+            buildStarted(b)
+            buildCompleted()
+            buildFinalized()
+            return true
+        }
+        if (!entry.started && entry.queueId != 0) {
+            // the item may have left the queue since the checkpoint
+            for (Run r = p.getLastBuild(); r != null; r = r.getPreviousBuildInProgress()) {
+                if (r.isBuilding() && r.getQueueId() == entry.queueId) {
+                    b = r
+                    break
+                }
+            }
+        }
+        if (entry.started && b == null) {
+            return false
+        }
+        future = getScheduler().follow(this, p, b, entry.queueId)
+        if (future == null) {
+            return false
+        }
+        markResumed()
+        return true
+    }
+
+    /* package */ String getReplayKey() {
+        return replayKey
+    }
+
+    /* package */ void setReplayKey(String replayKey) {
+        this.replayKey = replayKey
+    }
+
+    /**
+     * Has the given past build stand for this invocation, which is then done.
+     */
+    /* package */ void reuse(Run build) {
+        markReused();
+        buildStarted(build);
+        buildCompleted();
+        buildFinalized();
+    }
+
+    /**
+     * Whether there is nothing left to wait for: the build is finalized, or it left the queue without running.
+     */
+    public boolean isFinished() {
+        return finalized || (!started && future != null && future.isCancelled());
+    }
+
     public String getBuildUrl() {
         return this.getBuild() != null ? this.getBuild().getAbsoluteUrl() : null;
     }
@@ -215,17 +442,22 @@ public class JobInvocation {
     }
 
     public Run getBuild() throws ExecutionException, InterruptedException {
-        if (build == null) {
-            if (future != null) {
+        Run b = build;
+        if (b == null) {
+            def f = future;
+            if (f != null) {
                 // waiting for build to run
-                build = future.get();
-                buildNumber = build.getNumber();
+                b = f.get();
+                buildNumber = b.getNumber();
+                if (!finalized) {
+                    build = b;
+                }
             } else if (buildNumber > 0) {
-                // loaded from persistent store
-                build = getProject().getBuildByNumber(buildNumber);
+                // finalized, or loaded from persistent store: don't hold on to it
+                b = getProject().getBuildByNumber(buildNumber);
             }
         }
-        return build;
+        return b;
     }
 
     public AbstractProject<?, ? extends AbstractBuild<?, ?>> getProject() {
@@ -235,34 +467,117 @@ public class JobInvocation {
     }
 
     public String toString() {
-        return "${name} ${displayName}"
+        return reused ? "${name} ${displayName} (reused)"
+                : resumed ? "${name} ${displayName} (resumed)" : "${name} ${displayName}"
     }
 
     public Run waitForStart() throws ExecutionException, InterruptedException {
-        return future.waitForStart();
+        if (!started) {
+            if (future == null) {
+                throw new RuntimeException("Can't wait for start.");
+            }
+            awaitState { isStarted() }
+            if (!started) {
+                // the item left the queue without running, let the future report why
+                return future.get();
+            }
+        }
+        return getBuild();
     }
 
     public void waitForCompletion() throws ExecutionException, InterruptedException {
         if (!completed) {
-            if (future != null) {
-                future.get();
-            } else {
+            if (future == null) {
                 throw new RuntimeException("Can't wait for completion.");
             }
+            awaitState { isCompleted() }
+            if (!completed) {
+                future.get();
+            }
         }
     }
 
+    /**
+     * Waits at most the given time for the build to complete.
+     * @return <code>true</code> if the build completed, or will never run
+     */
+    public boolean waitForCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Lock l = getLock();
+        l.lock();
+        try {
+            while (!completed && !leftQueue()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                this.stateChanged.awaitNanos(left);
+            }
+        } finally {
+            l.unlock();
+        }
+        return true;
+    }
+
     public void waitForFinalization() throws ExecutionException, InterruptedException {
         if (!finalized) {
-            this.lock.lock();
-            try {
-                this.finalizedCond.await();
-            } finally {
-                this.lock.unlock();
+            awaitState { isFinalized() }
+        }
+    }
+
+    /**
+     * Parks the current thread until the condition holds or the item left the queue without running.
+     * Every state change signals the condition: the build events from FlowListener, and the cancellation of
+     * the queue item through {@link #buildCancelled()}, so there is no need to wake up and check again.
+     */
+    private void awaitState(Closure<Boolean> condition) throws InterruptedException {
+        Lock l = getLock();
+        l.lock();
+        try {
+            while (!condition() && !leftQueue()) {
+                this.stateChanged.await();
             }
+        } finally {
+            l.unlock();
         }
     }
 
+    /**
+     * Whether the queue item is done without the build having started. Started builds always get their
+     * completion and finalization events from FlowListener.
+     */
+    private boolean leftQueue() {
+        if (started) {
+            return false;
+        }
+        // the item may have been cancelled before the queue future was marked as such
+        def f = future;
+        return dequeued || (f != null && f.isDone());
+    }
+
+    /* package */ int getUid() {
+        return uid;
+    }
+
+    /* package */ int getBuildNumber() {
+        return buildNumber;
+    }
+
+    /* package */ long getQueueId() {
+        return queueId;
+    }
+
+    /* package */ void setQueueId(long queueId) {
+        this.queueId = queueId;
+    }
+
+    /**
+     * The build, if it has started and is still held, without waiting for it.
+     */
+    /* package */ Run getStartedBuild() {
+        return build;
+    }
+
     String getId() {
         return "build-" + uid;
     }
@@ -277,6 +592,24 @@ public class JobInvocation {
         }
     }
 
+    /**
+     * Vertex the last builds of wide parallel branches are chained to, so that the builds that follow only depend on
+     * it. Like Start, it stands for the flow build itself.
+     */
+    static class Join extends JobInvocation {
+
+        public Join(FlowRun run) {
+            this(run, run.buildIndex.getAndIncrement());
+        }
+
+        /**
+         * Restores the join vertex with the given uid, when the graph of the run is read back.
+         */
+        /* package */ Join(FlowRun run, int uid) {
+            super(run, uid, run.getProject().getFullName(), run.getNumber(), true, true, true);
+        }
+    }
+
     @Override
     boolean equals(Object obj) {
         if (!(obj instanceof JobInvocation)) return false
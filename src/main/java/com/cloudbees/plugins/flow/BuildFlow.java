@@ -40,6 +40,7 @@ import jenkins.model.Jenkins;
 import jenkins.triggers.SCMTriggerItem;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,11 +50,11 @@ import javax.servlet.ServletException;
 
 import net.sf.json.JSONObject;
 
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.codehaus.groovy.control.MultipleCompilationErrorsException;
-import groovy.lang.GroovyShell;
 
 /**
  * Defines the orchestration logic for a build flow as a succession of jobs to be executed and chained together
@@ -69,6 +70,14 @@ public class BuildFlow extends Project<BuildFlow, FlowRun> implements TopLevelIt
 
     private boolean buildNeedsWorkspace;
 
+    private boolean releaseWorkspace;
+
+    private boolean coalesceBuilds;
+
+    private boolean continueOnCompletion;
+
+    // not persisted: builds go through the Jenkins queue unless a test or a script says otherwise
+    private transient volatile FlowScheduler scheduler;
 
     public BuildFlow(ItemGroup parent, String name) {
         super(parent, name);
@@ -79,6 +88,9 @@ public class BuildFlow extends Project<BuildFlow, FlowRun> implements TopLevelIt
     }
 
     public void setDsl(String dsl) {
+        if (this.dsl != null && !this.dsl.equals(dsl)) {
+            FlowScriptCache.get().invalidate(this.dsl);
+        }
         this.dsl = dsl;
     }
 
@@ -90,6 +102,58 @@ public class BuildFlow extends Project<BuildFlow, FlowRun> implements TopLevelIt
         this.buildNeedsWorkspace = buildNeedsWorkspace;
     }
 
+    /**
+     * Whether a flow that needs a workspace only holds it to read its DSL and for the build steps around the flow,
+     * and lets other builds use it while the flow waits on its builds.
+     */
+    public boolean isReleaseWorkspace() {
+        return releaseWorkspace;
+    }
+
+    public void setReleaseWorkspace(boolean releaseWorkspace) {
+        this.releaseWorkspace = releaseWorkspace;
+    }
+
+    /**
+     * Whether a build the flow triggers with the same parameters as a build already queued or running
+     * follows that build, rather than failing the flow as the queue refuses a duplicate item.
+     */
+    public boolean isCoalesceBuilds() {
+        return coalesceBuilds;
+    }
+
+    public void setCoalesceBuilds(boolean coalesceBuilds) {
+        this.coalesceBuilds = coalesceBuilds;
+    }
+
+    /**
+     * Whether the flow moves on as soon as a downstream build has a result, rather than once the build is finalized.
+     * The flow still only finishes once all its builds are finalized.
+     */
+    public boolean isContinueOnCompletion() {
+        return continueOnCompletion;
+    }
+
+    public void setContinueOnCompletion(boolean continueOnCompletion) {
+        this.continueOnCompletion = continueOnCompletion;
+    }
+
+    /**
+     * The scheduler the next runs of this flow trigger their builds with.
+     */
+    public FlowScheduler getScheduler() {
+        FlowScheduler s = scheduler;
+        return s != null ? s : JenkinsQueueScheduler.INSTANCE;
+    }
+
+    /**
+     * Has the next runs of this flow trigger their builds with the given scheduler, until Jenkins restarts.
+     * <code>null</code> restores the default.
+     */
+    public void setScheduler(FlowScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
     public String getDslFile() {
         return dslFile;
     }
@@ -103,13 +167,17 @@ public class BuildFlow extends Project<BuildFlow, FlowRun> implements TopLevelIt
         super.submit(req, rsp);
         JSONObject json = req.getSubmittedForm();
         this.buildNeedsWorkspace = json.containsKey("buildNeedsWorkspace");
+        this.coalesceBuilds = json.optBoolean("coalesceBuilds");
+        this.continueOnCompletion = json.optBoolean("continueOnCompletion");
         if (Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS)) {
-            this.dsl = json.getString("dsl");
+            setDsl(json.getString("dsl"));
             if (this.buildNeedsWorkspace) {
                 JSONObject o = json.getJSONObject("buildNeedsWorkspace");
                 this.dslFile = Util.fixEmptyAndTrim(o.getString("dslFile"));
+                this.releaseWorkspace = o.optBoolean("releaseWorkspace");
             } else {
                 this.dslFile = null;
+                this.releaseWorkspace = false;
             }
         }
     }
@@ -138,18 +206,28 @@ public class BuildFlow extends Project<BuildFlow, FlowRun> implements TopLevelIt
             return new BuildFlow(parent, name);
         }
 
-        public FormValidation doCheckDsl(@QueryParameter String value) {
+        public FormValidation doCheckDsl(@QueryParameter String value, @AncestorInPath ItemGroup context) {
             // Require RUN_SCRIPTS permission, otherwise print a warning that no edits are possible
             if (!Jenkins.getInstance().hasPermission(Jenkins.RUN_SCRIPTS)) { 
                 return FormValidation.warning(Messages.BuildFlow_InsufficientPermissions());
             }
             
+            // only parsed, no script class is generated on each change of the field
+            FlowAnalysis analysis;
             try {
-            	new GroovyShell().parse(value);
-			} 
-			catch (MultipleCompilationErrorsException e) {
-				return FormValidation.error( e.getMessage());
-			} 
+                analysis = FlowAnalysis.of(value);
+            } catch (MultipleCompilationErrorsException e) {
+                return FormValidation.error( e.getMessage());
+            }
+            Map<String, List<FlowAnalysis.JobReference>> missing =
+                    analysis.resolve(context != null ? context : Jenkins.getInstance());
+            if (!missing.isEmpty()) {
+                List<String> jobs = new ArrayList<String>();
+                for (List<FlowAnalysis.JobReference> references : missing.values()) {
+                    jobs.add(Util.join(references, ", "));
+                }
+                return FormValidation.warning(Messages.BuildFlow_UnknownJobs(Util.join(jobs, ", ")));
+            }
             return FormValidation.ok();
         }
       
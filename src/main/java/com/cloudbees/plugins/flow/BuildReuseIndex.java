@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.scm.NullSCM;
+import hudson.scm.PollingResult;
+import hudson.scm.SCMRevisionState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds a successful build of a job with the same inputs as a build about to be triggered, so that the flow
+ * can reuse it instead of building again.
+ * <p>
+ * The inputs of a build are its parameters and the SCM revision it checked out. Only the jobs flows ask about
+ * are indexed, from their {@link #MAX_BUILDS} most recent builds, and only the builds completed since the previous
+ * lookup are read again. A build is only reused when the job has no build in progress and polling reports
+ * no change since its last build, so the revision to build is the one last checked out. Jobs whose SCM doesn't
+ * record that revision in the build, as {@link SCMRevisionState#NONE} does, never reuse builds: their builds
+ * would only be told apart by their parameters.
+ */
+public final class BuildReuseIndex {
+
+    /**
+     * Number of recent builds of a job considered for reuse.
+     */
+    public static int MAX_BUILDS = Integer.getInteger(BuildReuseIndex.class.getName() + ".builds", 20);
+
+    private static final ConcurrentMap<String, BuildReuseIndex> INDEXES = new ConcurrentHashMap<String, BuildReuseIndex>();
+
+    // fingerprint of the inputs -> number of the most recent successful build with these inputs
+    private final Map<String, Integer> builds = new LinkedHashMap<String, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_BUILDS;
+        }
+    };
+
+    // builds up to this number are indexed
+    private int indexed;
+
+    private BuildReuseIndex() {}
+
+    /**
+     * A successful build of the project with the same parameters as the given actions, and the current SCM revision.
+     * <code>null</code> if there is none, or if the inputs of the build can't be told apart.
+     *
+     * @param listener the console of the flow, which gets the polling log and the reason no build is reused
+     */
+    public static Run<?, ?> lookup(AbstractProject<?, ?> project, List<Action> actions, TaskListener listener) {
+        Run<?, ?> last = project.getLastBuild();
+        if (last == null) {
+            return miss(project, listener, "it was never built");
+        }
+        if (last.isBuilding()) {
+            return miss(project, listener, "a build is in progress");
+        }
+        ParametersAction parameters = null;
+        for (Action action : actions) {
+            if (action instanceof ParametersAction) {
+                parameters = (ParametersAction) action;
+                break;
+            }
+        }
+        SCMRevisionState revision = last.getAction(SCMRevisionState.class);
+        boolean hasScm = !(project.getScm() instanceof NullSCM);
+        if (hasScm && (revision == null || revision == SCMRevisionState.NONE)) {
+            return miss(project, listener, "its SCM doesn't record the revision a build checked out");
+        }
+        String fingerprint = fingerprint(parameters, revision);
+        if (fingerprint == null) {
+            return miss(project, listener, "its parameters can't be compared");
+        }
+        if (hasScm) {
+            PollingResult changes = project.poll(listener);
+            if (changes.hasChanges()) {
+                return miss(project, listener, "its SCM has changes since the last build");
+            }
+        }
+        BuildReuseIndex index = INDEXES.get(project.getFullName());
+        if (index == null) {
+            BuildReuseIndex created = new BuildReuseIndex();
+            index = INDEXES.putIfAbsent(project.getFullName(), created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        Run<?, ?> build = index.find(project, fingerprint, revision);
+        if (build == null) {
+            return miss(project, listener, "no recent successful build has the same parameters and SCM revision");
+        }
+        return build;
+    }
+
+    private static Run<?, ?> miss(AbstractProject<?, ?> project, TaskListener listener, String reason) {
+        listener.getLogger().println("No build of " + project.getFullDisplayName() + " reused, " + reason);
+        return null;
+    }
+
+    /**
+     * The indexed build with the given fingerprint, provided it checked out the given revision.
+     */
+    private synchronized Run<?, ?> find(AbstractProject<?, ?> project, String fingerprint, SCMRevisionState revision) {
+        update(project);
+        Integer number = builds.get(fingerprint);
+        if (number == null) {
+            return null;
+        }
+        Run<?, ?> build = project.getBuildByNumber(number);
+        if (build == null || build.isBuilding() || build.getResult() != Result.SUCCESS
+                || !sameRevision(build.getAction(SCMRevisionState.class), revision)) {
+            // deleted or edited since it was indexed
+            builds.remove(fingerprint);
+            return null;
+        }
+        return build;
+    }
+
+    private static boolean sameRevision(SCMRevisionState a, SCMRevisionState b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Run.XSTREAM2.toXML(a).equals(Run.XSTREAM2.toXML(b));
+    }
+
+    /**
+     * Indexes the builds completed since the last update, oldest first so that the most recent build wins.
+     */
+    private void update(AbstractProject<?, ?> project) {
+        List<Run<?, ?>> completed = new ArrayList<Run<?, ?>>();
+        int oldestBuilding = 0;
+        int depth = 0;
+        Run<?, ?> last = project.getLastBuild();
+        for (Run<?, ?> build = last; build != null && build.getNumber() > indexed && depth < MAX_BUILDS;
+             build = build.getPreviousBuild(), depth++) {
+            if (build.isBuilding()) {
+                oldestBuilding = build.getNumber();
+            } else if (build.getResult() == Result.SUCCESS) {
+                completed.add(build);
+            }
+        }
+        for (int i = completed.size() - 1; i >= 0; i--) {
+            Run<?, ?> build = completed.get(i);
+            String fingerprint = fingerprint(build.getAction(ParametersAction.class), build.getAction(SCMRevisionState.class));
+            if (fingerprint != null) {
+                builds.remove(fingerprint);
+                builds.put(fingerprint, build.getNumber());
+            }
+        }
+        if (last != null) {
+            // builds still in progress are indexed once they complete
+            indexed = oldestBuilding > 0 ? oldestBuilding - 1 : last.getNumber();
+        }
+    }
+
+    /**
+     * Digest of the parameter values and of the SCM revision, or <code>null</code> for a parameter whose value
+     * isn't plain data, such as a file or a password.
+     */
+    /* package */ static String fingerprint(ParametersAction parameters, SCMRevisionState revision) {
+        List<String> values = new ArrayList<String>();
+        if (parameters != null) {
+            for (ParameterValue parameter : parameters.getParameters()) {
+                Object value = parameter.getValue();
+                if (value != null && !(value instanceof String || value instanceof Boolean || value instanceof Number)) {
+                    return null;
+                }
+                values.add(parameter.getName() + '=' + value);
+            }
+        }
+        Collections.sort(values);
+        StringBuilder inputs = new StringBuilder();
+        for (String value : values) {
+            inputs.append(value).append('\n');
+        }
+        if (revision != null) {
+            inputs.append(Run.XSTREAM2.toXML(revision));
+        }
+        return Util.getDigestOf(inputs.toString());
+    }
+
+    /* package */ static void invalidate(String fullName) {
+        INDEXES.remove(fullName);
+    }
+
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            invalidate(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate(oldFullName);
+            invalidate(newFullName);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+/**
+ * Queue priority hint of a build triggered by a longest-first parallel block: the estimated time, in milliseconds,
+ * of the longest chain of builds of the flow that goes through it. {@link CriticalPathQueueSorter} lets the builds
+ * on the longest chains go first.
+ * <p>
+ * Only meaningful while the build waits in the queue: it is removed from the build once it starts, so that it is not
+ * kept in its record.
+ */
+public class CriticalPathAction extends InvisibleAction {
+
+    private final long criticalPath;
+
+    public CriticalPathAction(long criticalPath) {
+        this.criticalPath = criticalPath;
+    }
+
+    public long getCriticalPath() {
+        return criticalPath;
+    }
+
+    /**
+     * Removes the hint the build got from its queue item, if any.
+     */
+    /* package */ static void removeFrom(Run<?, ?> build) {
+        CriticalPathAction action = build.getAction(CriticalPathAction.class);
+        if (action != null) {
+            build.getActions().remove(action);
+        }
+    }
+}
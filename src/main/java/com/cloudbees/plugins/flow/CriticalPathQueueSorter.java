@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.QueueSorter;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Lets the buildable items carrying a {@link CriticalPathAction} go first among themselves, the longest critical path
+ * first. The other items keep the place the sorter in place before, if any, gives them: flow builds only swap slots
+ * with each other.
+ * <p>
+ * Not an extension, so that it doesn't take the place of the sorter of another plugin. As it still changes the order
+ * of the whole queue, it is opt-in: with {@link #ENABLED} set, it is installed on top of the current sorter the first
+ * time a longest-first block schedules a build. Otherwise builds carry no hint and the queue is left alone.
+ */
+public class CriticalPathQueueSorter extends QueueSorter {
+
+    /**
+     * Let the builds of longest-first blocks on the longest chains go first in the queue.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(CriticalPathQueueSorter.class.getName() + ".enabled");
+
+    private static final Comparator<BuildableItem> LONGEST_FIRST = new Comparator<BuildableItem>() {
+        public int compare(BuildableItem a, BuildableItem b) {
+            long pa = a.getAction(CriticalPathAction.class).getCriticalPath();
+            long pb = b.getAction(CriticalPathAction.class).getCriticalPath();
+            return pa > pb ? -1 : (pa < pb ? 1 : 0);
+        }
+    };
+
+    private final QueueSorter delegate;
+
+    public CriticalPathQueueSorter(QueueSorter delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void sortBuildableItems(List<BuildableItem> buildables) {
+        if (delegate != null) {
+            delegate.sortBuildableItems(buildables);
+        }
+        List<Integer> slots = new ArrayList<Integer>();
+        List<BuildableItem> hinted = new ArrayList<BuildableItem>();
+        for (int i = 0; i < buildables.size(); i++) {
+            BuildableItem item = buildables.get(i);
+            if (item.getAction(CriticalPathAction.class) != null) {
+                slots.add(i);
+                hinted.add(item);
+            }
+        }
+        if (hinted.size() < 2) {
+            return;
+        }
+        // stable, items with the same hint keep their order
+        Collections.sort(hinted, LONGEST_FIRST);
+        for (int i = 0; i < slots.size(); i++) {
+            buildables.set(slots.get(i), hinted.get(i));
+        }
+    }
+
+    /**
+     * Installs the sorter on top of the current one, unless already done or not {@link #ENABLED}.
+     */
+    public static void install() {
+        if (!ENABLED) {
+            return;
+        }
+        Queue queue = Jenkins.getInstance().getQueue();
+        synchronized (CriticalPathQueueSorter.class) {
+            QueueSorter current = queue.getSorter();
+            if (!(current instanceof CriticalPathQueueSorter)) {
+                queue.setSorter(new CriticalPathQueueSorter(current));
+            }
+        }
+    }
+}
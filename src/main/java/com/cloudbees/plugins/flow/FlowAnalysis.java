@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import groovy.lang.GroovyClassLoader;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.ItemGroup;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.CodeVisitorSupport;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.ModuleNode;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.ListExpression;
+import org.codehaus.groovy.ast.expr.MapEntryExpression;
+import org.codehaus.groovy.ast.expr.MapExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.TernaryExpression;
+import org.codehaus.groovy.ast.expr.TupleExpression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.CatchStatement;
+import org.codehaus.groovy.ast.stmt.DoWhileStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ForStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.ast.stmt.SwitchStatement;
+import org.codehaus.groovy.ast.stmt.WhileStatement;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.jgrapht.graph.DefaultEdge;
+
+/**
+ * What can be told of a flow DSL script without running it: the jobs it builds by literal name, and the graph of
+ * builds its sequences and parallel blocks of such builds predict. Computed job names, loops and other dynamic
+ * parts of the script are left out.
+ * <p>
+ * The script is only parsed to an AST, no class is generated: this is cheap enough to run before each run, and on
+ * each change of the DSL in the configuration page.
+ */
+public final class FlowAnalysis {
+
+    /**
+     * A <code>build("...")</code> or <code>buildAsync("...")</code> call with a literal job name.
+     */
+    public static final class JobReference {
+
+        private final String name;
+        private final int line;
+        private final boolean conditional;
+
+        JobReference(String name, int line, boolean conditional) {
+            this.name = name;
+            this.line = line;
+            this.conditional = conditional;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * Whether the call may not run: in a branch of a condition, a loop, a method or a closure that is not
+         * one of the DSL blocks.
+         */
+        public boolean isConditional() {
+            return conditional;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (line " + line + ")";
+        }
+    }
+
+    private static final Set<String> BUILDS = new LinkedHashSet<String>(Arrays.asList("build", "buildAsync"));
+
+    // DSL blocks whose closures always run
+    private static final Set<String> BLOCKS = new LinkedHashSet<String>(
+            Arrays.asList("parallel", "guard", "rescue", "ignore", "retry"));
+
+    private static final Map<String, FlowAnalysis> CACHE = new LinkedHashMap<String, FlowAnalysis>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FlowAnalysis> eldest) {
+            return size() > FlowScriptCache.MAX_SIZE;
+        }
+    };
+
+    private final List<JobReference> references = new ArrayList<JobReference>();
+
+    private final Map<MethodCallExpression, JobReference> calls = new IdentityHashMap<MethodCallExpression, JobReference>();
+
+    private final DirectedGraph<JobReference, DefaultEdge> predicted =
+            new DefaultDirectedGraph<JobReference, DefaultEdge>(DefaultEdge.class);
+
+    private FlowAnalysis() {
+    }
+
+    /**
+     * Analyzes the script, or returns the analysis of the same text done before.
+     *
+     * @throws CompilationFailedException if the script doesn't parse
+     */
+    public static FlowAnalysis of(String dsl) throws CompilationFailedException {
+        String key = Util.getDigestOf(dsl);
+        synchronized (CACHE) {
+            FlowAnalysis analysis = CACHE.get(key);
+            if (analysis != null) {
+                return analysis;
+            }
+        }
+        FlowAnalysis analysis = analyze(dsl);
+        synchronized (CACHE) {
+            CACHE.put(key, analysis);
+        }
+        return analysis;
+    }
+
+    /* package */ static FlowAnalysis analyze(String dsl) throws CompilationFailedException {
+        CompilationUnit unit = new CompilationUnit(CompilerConfiguration.DEFAULT,
+                null, new GroovyClassLoader(FlowAnalysis.class.getClassLoader()));
+        SourceUnit source = unit.addSource("FlowScript.groovy", dsl);
+        unit.compile(Phases.CONVERSION);
+        ModuleNode module = source.getAST();
+
+        FlowAnalysis analysis = new FlowAnalysis();
+        ReferenceCollector collector = analysis.new ReferenceCollector();
+        module.getStatementBlock().visit(collector);
+        // methods declared by the script only run if called
+        collector.conditional++;
+        for (ClassNode c : module.getClasses()) {
+            for (MethodNode m : c.getMethods()) {
+                if (m.getCode() != null && !"run".equals(m.getName()) && !"main".equals(m.getName())) {
+                    m.getCode().visit(collector);
+                }
+            }
+        }
+        analysis.predict(module.getStatementBlock(), Collections.<JobReference>emptySet());
+        return analysis;
+    }
+
+    /**
+     * The literal build calls of the script, in the order they appear.
+     */
+    public List<JobReference> getReferences() {
+        return Collections.unmodifiableList(references);
+    }
+
+    /**
+     * The builds of the script, chained as its sequences and parallel blocks would chain them.
+     */
+    public DirectedGraph<JobReference, DefaultEdge> getPredictedGraph() {
+        return predicted;
+    }
+
+    /**
+     * Resolves each referenced job once, and has the parameters of the jobs found indexed ahead of their builds.
+     *
+     * @return the references to jobs that could not be found, by job name
+     */
+    public Map<String, List<JobReference>> resolve(ItemGroup context) {
+        Map<String, List<JobReference>> missing = new LinkedHashMap<String, List<JobReference>>();
+        Map<String, Boolean> found = new HashMap<String, Boolean>();
+        for (JobReference reference : references) {
+            Boolean exists = found.get(reference.getName());
+            if (exists == null) {
+                AbstractProject<?, ?> project =
+                        Jenkins.getInstance().getItem(reference.getName(), context, AbstractProject.class);
+                if (project != null) {
+                    ParameterDefinitionIndex.of(project);
+                }
+                exists = project != null;
+                found.put(reference.getName(), exists);
+            }
+            if (!exists) {
+                List<JobReference> list = missing.get(reference.getName());
+                if (list == null) {
+                    missing.put(reference.getName(), list = new ArrayList<JobReference>());
+                }
+                list.add(reference);
+            }
+        }
+        return missing;
+    }
+
+    private Set<JobReference> predict(Statement statement, Set<JobReference> upstream) {
+        if (statement instanceof BlockStatement) {
+            for (Statement s : ((BlockStatement) statement).getStatements()) {
+                upstream = predict(s, upstream);
+            }
+            return upstream;
+        }
+        if (statement instanceof ExpressionStatement) {
+            return predict(((ExpressionStatement) statement).getExpression(), upstream);
+        }
+        if (statement instanceof ReturnStatement) {
+            return predict(((ReturnStatement) statement).getExpression(), upstream);
+        }
+        // anything else may or may not run, and in any order
+        return upstream;
+    }
+
+    private Set<JobReference> predict(Expression expression, Set<JobReference> upstream) {
+        if (expression instanceof BinaryExpression) {
+            // def b = build("job")
+            return predict(((BinaryExpression) expression).getRightExpression(), upstream);
+        }
+        if (!(expression instanceof MethodCallExpression)) {
+            return upstream;
+        }
+        MethodCallExpression call = (MethodCallExpression) expression;
+        String method = call.getMethodAsString();
+        JobReference reference = calls.get(call);
+        if (reference != null) {
+            predicted.addVertex(reference);
+            for (JobReference up : upstream) {
+                predicted.addEdge(up, reference);
+            }
+            // the next builds are not chained after async ones
+            return "build".equals(method) ? Collections.singleton(reference) : upstream;
+        }
+        if ("rescue".equals(method) && call.getObjectExpression() instanceof MethodCallExpression) {
+            // guard { ... } rescue { ... }
+            upstream = predict(call.getObjectExpression(), upstream);
+        } else if (!call.isImplicitThis()) {
+            return upstream;
+        }
+        if ("parallel".equals(method)) {
+            Set<JobReference> last = new LinkedHashSet<JobReference>();
+            for (ClosureExpression branch : closures(call.getArguments())) {
+                last.addAll(predict(branch.getCode(), upstream));
+            }
+            return last.isEmpty() ? upstream : last;
+        }
+        if (BLOCKS.contains(method)) {
+            for (ClosureExpression block : closures(call.getArguments())) {
+                upstream = predict(block.getCode(), upstream);
+            }
+        }
+        return upstream;
+    }
+
+    /**
+     * The closures passed to a call, directly, in a list, or as values of named arguments.
+     */
+    private static List<ClosureExpression> closures(Expression arguments) {
+        List<ClosureExpression> closures = new ArrayList<ClosureExpression>();
+        if (arguments instanceof TupleExpression) {
+            for (Expression argument : ((TupleExpression) arguments).getExpressions()) {
+                closures.addAll(closures(argument));
+            }
+        } else if (arguments instanceof ListExpression) {
+            for (Expression element : ((ListExpression) arguments).getExpressions()) {
+                closures.addAll(closures(element));
+            }
+        } else if (arguments instanceof MapExpression) {
+            for (MapEntryExpression entry : ((MapExpression) arguments).getMapEntryExpressions()) {
+                closures.addAll(closures(entry.getValueExpression()));
+            }
+        } else if (arguments instanceof ClosureExpression) {
+            closures.add((ClosureExpression) arguments);
+        }
+        return closures;
+    }
+
+    /**
+     * The job name of a literal build call, if it is one.
+     */
+    private static String literalJob(MethodCallExpression call) {
+        if (!call.isImplicitThis() || !BUILDS.contains(call.getMethodAsString())
+                || !(call.getArguments() instanceof TupleExpression)) {
+            return null;
+        }
+        for (Expression argument : ((TupleExpression) call.getArguments()).getExpressions()) {
+            if (argument instanceof MapExpression) {
+                // named parameters
+                continue;
+            }
+            if (argument instanceof ConstantExpression && ((ConstantExpression) argument).getValue() instanceof String) {
+                return (String) ((ConstantExpression) argument).getValue();
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private final class ReferenceCollector extends CodeVisitorSupport {
+
+        int conditional;
+
+        // closures passed to DSL blocks, which always run
+        private final Set<ClosureExpression> blocks =
+                Collections.newSetFromMap(new IdentityHashMap<ClosureExpression, Boolean>());
+
+        @Override
+        public void visitMethodCallExpression(MethodCallExpression call) {
+            String job = literalJob(call);
+            if (job != null) {
+                JobReference reference = new JobReference(job, call.getLineNumber(), conditional > 0);
+                references.add(reference);
+                calls.put(call, reference);
+            }
+            if (BLOCKS.contains(call.getMethodAsString())) {
+                blocks.addAll(closures(call.getArguments()));
+            }
+            super.visitMethodCallExpression(call);
+        }
+
+        @Override
+        public void visitClosureExpression(ClosureExpression closure) {
+            int depth = blocks.contains(closure) ? 0 : 1;
+            conditional += depth;
+            super.visitClosureExpression(closure);
+            conditional -= depth;
+        }
+
+        @Override
+        public void visitIfElse(IfStatement statement) {
+            statement.getBooleanExpression().visit(this);
+            conditional++;
+            statement.getIfBlock().visit(this);
+            statement.getElseBlock().visit(this);
+            conditional--;
+        }
+
+        @Override
+        public void visitTernaryExpression(TernaryExpression expression) {
+            conditional++;
+            super.visitTernaryExpression(expression);
+            conditional--;
+        }
+
+        @Override
+        public void visitSwitch(SwitchStatement statement) {
+            conditional++;
+            super.visitSwitch(statement);
+            conditional--;
+        }
+
+        @Override
+        public void visitForLoop(ForStatement loop) {
+            conditional++;
+            super.visitForLoop(loop);
+            conditional--;
+        }
+
+        @Override
+        public void visitWhileLoop(WhileStatement loop) {
+            conditional++;
+            super.visitWhileLoop(loop);
+            conditional--;
+        }
+
+        @Override
+        public void visitDoWhileLoop(DoWhileStatement loop) {
+            conditional++;
+            super.visitDoWhileLoop(loop);
+            conditional--;
+        }
+
+        @Override
+        public void visitCatchStatement(CatchStatement statement) {
+            conditional++;
+            super.visitCatchStatement(statement);
+            conditional--;
+        }
+    }
+}
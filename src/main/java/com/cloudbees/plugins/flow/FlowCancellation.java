@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks the builds scheduled by the branches of a fail-fast parallel block, so that they can all be aborted at once
+ * when one of the branches fails. Blocks nested in the branches get a child cancellation, or share this one.
+ * <p>
+ * Once cancelled, no build can be tracked anymore: the branches still running fail on their next build.
+ */
+public final class FlowCancellation {
+
+    private final FlowCancellation parent;
+
+    // guarded by this
+    private final Set<JobInvocation> jobs = new LinkedHashSet<JobInvocation>();
+    private final List<FlowCancellation> children = new ArrayList<FlowCancellation>();
+
+    private volatile boolean cancelled;
+
+    public FlowCancellation(FlowCancellation parent) {
+        this.parent = parent;
+        if (parent != null) {
+            parent.addChild(this);
+        }
+    }
+
+    private synchronized void addChild(FlowCancellation child) {
+        children.add(child);
+    }
+
+    public boolean isCancelled() {
+        return cancelled || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * Registers a build about to be scheduled.
+     *
+     * @return <code>false</code> if the block is already cancelled, and the build should not be scheduled
+     */
+    /* package */ boolean track(JobInvocation job) {
+        synchronized (this) {
+            if (!isCancelled()) {
+                jobs.add(job);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Aborts the tracked builds that have not completed yet: queued ones are removed from the queue, running ones
+     * are interrupted. Does nothing if already cancelled.
+     *
+     * @return the invocations that were aborted
+     */
+    public List<JobInvocation> cancel(FlowScheduler scheduler) {
+        List<JobInvocation> pending = new ArrayList<JobInvocation>();
+        collect(pending);
+        for (JobInvocation job : pending) {
+            job.markCancelled();
+        }
+        Set<JobInvocation> dequeued = scheduler.cancelQueued(pending);
+        for (JobInvocation job : pending) {
+            if (!dequeued.contains(job) && !job.isCompleted()) {
+                scheduler.abort(job);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Aborts a build scheduled while the block was being cancelled, which the cancellation may have missed.
+     */
+    /* package */ void cancelLate(JobInvocation job, FlowScheduler scheduler) {
+        if (!job.isCompleted()) {
+            job.markCancelled();
+            scheduler.abort(job);
+        }
+    }
+
+    private void collect(List<JobInvocation> pending) {
+        List<FlowCancellation> nested;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            for (JobInvocation job : jobs) {
+                if (!job.isCompleted()) {
+                    pending.add(job);
+                }
+            }
+            jobs.clear();
+            nested = new ArrayList<FlowCancellation>(children);
+        }
+        for (FlowCancellation child : nested) {
+            child.collect(pending);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.ParametersAction;
+import hudson.model.listeners.ItemListener;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically records the progress of a running flow in its build directory, so that a flow interrupted by a restart
+ * of Jenkins is resumed once Jenkins is back instead of starting over.
+ * <p>
+ * The checkpoint lists the builds the flow triggered: whether they started and completed, their build number
+ * or queue item, and a key made of the job and the parameters of the build. The file is deleted once the flow is done,
+ * so a checkpoint found at startup belongs to a flow that was interrupted. That flow is then run again, and each build
+ * it triggers is matched by key, in order, with the builds of the checkpoint: a completed build stands for the new one,
+ * a build still running or queued is followed, and only the builds that never ran, or were killed by the restart,
+ * are triggered again. This relies on the DSL triggering the same builds in the same order, as a flow whose
+ * branches depend on the outcome of its builds does when they are replayed.
+ */
+public final class FlowCheckpoint implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowCheckpoint.class.getName());
+
+    /**
+     * Seconds between two checkpoints of a running flow.
+     */
+    public static int PERIOD = Integer.getInteger(FlowCheckpoint.class.getName() + ".period", 10);
+
+    /**
+     * Number of build numbers of each flow, from the last one down, checked for a checkpoint at startup.
+     */
+    public static int SCAN_DEPTH = Integer.getInteger(FlowCheckpoint.class.getName() + ".scanDepth", 10);
+
+    static final String FILE_NAME = "checkpoint.txt";
+
+    private static final String HEADER = "# build-flow checkpoint 1";
+
+    private static final int STARTED = 1;
+    private static final int COMPLETED = 2;
+
+    // set once Jenkins starts shutting down, flows then keep their checkpoint instead of aborting their builds
+    private static volatile boolean shuttingDown;
+
+    private final FlowRun run;
+    private final ScheduledFuture<?> task;
+
+    private FlowCheckpoint(FlowRun run) {
+        this.run = run;
+        this.task = PERIOD > 0 ? Timer.get().scheduleWithFixedDelay(this, PERIOD, PERIOD, TimeUnit.SECONDS) : null;
+    }
+
+    /**
+     * Starts checkpointing the run until {@link #stop()} is called.
+     */
+    /* package */ static FlowCheckpoint start(FlowRun run) {
+        return new FlowCheckpoint(run);
+    }
+
+    public void run() {
+        try {
+            write(fileOf(run), snapshot(run));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to checkpoint " + run, e);
+        }
+    }
+
+    /**
+     * Stops checkpointing. The checkpoint is kept, up to date, if the run is stopped by a shutdown of Jenkins.
+     */
+    /* package */ void stop() {
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (shuttingDown) {
+            run();
+        } else {
+            File file = fileOf(run);
+            if (file.exists() && !file.delete()) {
+                LOGGER.warning("Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Whether Jenkins is shutting down, in which case running flows leave their builds alone to resume them later.
+     */
+    public static boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    /**
+     * The builds the run triggered so far.
+     */
+    /* package */ static List<Entry> snapshot(FlowRun run) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (JobInvocation job : run.getFlowGraph().getVertices()) {
+            if (job instanceof JobInvocation.Start || job instanceof JobInvocation.Join || job.getReplayKey() == null) {
+                continue;
+            }
+            entries.add(new Entry(job));
+        }
+        return entries;
+    }
+
+    /**
+     * Key matching the builds of a replayed flow with the ones of the checkpoint: the job, and a digest
+     * of the parameters. <code>null</code> if the parameters can't be told apart.
+     */
+    /* package */ static String keyOf(JobInvocation job, List<Action> actions) {
+        ParametersAction parameters = null;
+        for (Action action : actions) {
+            if (action instanceof ParametersAction) {
+                parameters = (ParametersAction) action;
+                break;
+            }
+        }
+        String fingerprint = BuildReuseIndex.fingerprint(parameters, null);
+        return fingerprint != null ? fingerprint + ' ' + job.getName() : null;
+    }
+
+    /* package */ static File fileOf(FlowRun run) {
+        return new File(run.getRootDir(), FILE_NAME);
+    }
+
+    /* package */ static void write(File file, List<Entry> entries) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(file, "UTF-8");
+        try {
+            w.write(HEADER);
+            w.write('\n');
+            StringBuilder line = new StringBuilder(128);
+            for (Entry entry : entries) {
+                line.setLength(0);
+                line.append(entry.flags)
+                        .append(' ').append(entry.buildNumber)
+                        .append(' ').append(entry.queueId)
+                        .append(' ').append(entry.key)
+                        .append('\n');
+                w.write(line.toString());
+            }
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    /* package */ static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = r.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unexpected header in " + file + ": " + line);
+            }
+            while ((line = r.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                // the key ends with the job full name, which may contain spaces
+                String[] fields = line.split(" ", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Malformed line in " + file + ": " + line);
+                }
+                entries.add(new Entry(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                        Long.parseLong(fields[2]), fields[3]));
+            }
+        } finally {
+            r.close();
+        }
+        return entries;
+    }
+
+    /**
+     * A build triggered by an interrupted flow.
+     */
+    public static final class Entry {
+        private final int flags;
+        private final int buildNumber;
+        private final long queueId;
+        private final String key;
+
+        Entry(JobInvocation job) {
+            this((job.isStarted() ? STARTED : 0) | (job.isCompleted() ? COMPLETED : 0),
+                    job.getBuildNumber(), job.getQueueId(), job.getReplayKey());
+        }
+
+        Entry(int flags, int buildNumber, long queueId, String key) {
+            this.flags = flags;
+            this.buildNumber = buildNumber;
+            this.queueId = queueId;
+            this.key = key;
+        }
+
+        public boolean isStarted() {
+            return (flags & STARTED) != 0;
+        }
+
+        /**
+         * Whether the flow saw the build complete, its result then stands.
+         */
+        public boolean isCompleted() {
+            return (flags & COMPLETED) != 0;
+        }
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        public long getQueueId() {
+            return queueId;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * The builds of an interrupted flow not matched yet by the run replaying it, by key in the order they were triggered.
+     */
+    /* package */ static final class Replay {
+
+        private final Map<String, LinkedList<Entry>> entries = new HashMap<String, LinkedList<Entry>>();
+
+        Replay(List<Entry> checkpoint) {
+            for (Entry entry : checkpoint) {
+                LinkedList<Entry> list = entries.get(entry.key);
+                if (list == null) {
+                    list = new LinkedList<Entry>();
+                    entries.put(entry.key, list);
+                }
+                list.add(entry);
+            }
+        }
+
+        /**
+         * The next build of the interrupted flow with the given key, if any.
+         */
+        synchronized Entry take(String key) {
+            LinkedList<Entry> list = key != null ? entries.get(key) : null;
+            return list != null ? list.poll() : null;
+        }
+    }
+
+    /**
+     * Resumes the flows interrupted by the last shutdown of Jenkins once all the jobs are loaded.
+     */
+    @Extension
+    public static class ResumeOnStartup extends ItemListener {
+
+        /**
+         * Looks for checkpoints in the build directories, so that only the runs to resume get loaded.
+         */
+        @Override
+        public void onLoaded() {
+            // Jenkins may be started again in the same JVM
+            shuttingDown = false;
+            for (BuildFlow flow : Jenkins.getInstance().getAllItems(BuildFlow.class)) {
+                File builds = flow.getBuildDir();
+                int last = flow.getNextBuildNumber() - 1;
+                for (int number = last; number > 0 && number > last - SCAN_DEPTH; number--) {
+                    if (!new File(new File(builds, Integer.toString(number)), FILE_NAME).exists()) {
+                        continue;
+                    }
+                    FlowRun run = flow.getBuildByNumber(number);
+                    if (run == null) {
+                        LOGGER.warning("Failed to load build " + number + " of " + flow.getFullName()
+                                + ", its checkpoint is ignored");
+                        continue;
+                    }
+                    resume(flow, run, fileOf(run));
+                }
+            }
+        }
+
+        @Override
+        public void onBeforeShutdown() {
+            shuttingDown = true;
+        }
+    }
+
+    /**
+     * Schedules a run of the flow that replays the interrupted one, with the same parameters.
+     */
+    /* package */ static void resume(BuildFlow flow, FlowRun interrupted, File file) {
+        List<Entry> entries;
+        try {
+            entries = read(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the checkpoint of " + interrupted + ", it won't be resumed", e);
+            return;
+        }
+        List<Action> actions = new ArrayList<Action>();
+        ParametersAction parameters = interrupted.getAction(ParametersAction.class);
+        if (parameters != null) {
+            actions.add(parameters);
+        }
+        if (flow.scheduleBuild2(0, new FlowResumeCause(interrupted, entries), actions) == null) {
+            LOGGER.warning("Failed to schedule the resumption of " + interrupted);
+            return;
+        }
+        LOGGER.info("Resuming " + interrupted + ", interrupted with " + entries.size() + " build(s) triggered");
+        // the entries travel with the queue item from now on
+        if (!file.delete()) {
+            LOGGER.warning("Failed to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import com.cloudbees.plugins.flow.FlowRun.JobEdge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.SimpleDirectedGraph;
+import org.jgrapht.graph.UnmodifiableDirectedGraph;
+
+/**
+ * The job invocations of a flow run and the dependencies between them.
+ * <p>
+ * Invocations are indexed by their uid, which {@link FlowRun} hands out in sequence, and edges are kept as pairs
+ * of uids packed in longs, so a flow with tens of thousands of builds costs no more than its invocations and a few
+ * bytes per edge. The JGraphT graph used by views and extensions is derived from it on demand,
+ * see {@link #asDirectedGraph()}.
+ * <p>
+ * Parallel branches register their builds concurrently: both vertices and edges live in chunks of atomic arrays
+ * that are only ever appended to, so adding to the graph takes no lock. Readers see a consistent prefix of it.
+ */
+public final class FlowGraph {
+
+    private static final int CHUNK_BITS = 8;
+    /* package */ static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // invocations by uid, uids start at 1
+    private volatile AtomicReferenceArray<JobInvocation>[] vertices = newVertexDirectory(4);
+    private final AtomicInteger vertexCount = new AtomicInteger();
+    private final AtomicInteger maxUid = new AtomicInteger(-1);
+
+    // edge i goes from the uid in the high int of edges[i] to the uid in its low int.
+    // A slot is reserved by incrementing edgeCount then written, it reads 0 until then.
+    private volatile AtomicLongArray[] edges = new AtomicLongArray[4];
+    private final AtomicInteger edgeCount = new AtomicInteger();
+
+    /**
+     * Copies a JGraphT graph, as found in records of older versions.
+     */
+    public static FlowGraph of(DirectedGraph<JobInvocation, JobEdge> graph) {
+        FlowGraph g = new FlowGraph();
+        for (JobInvocation job : graph.vertexSet()) {
+            g.addVertex(job);
+        }
+        for (JobEdge edge : graph.edgeSet()) {
+            g.addEdge(graph.getEdgeSource(edge), graph.getEdgeTarget(edge));
+        }
+        return g;
+    }
+
+    /**
+     * @return <code>false</code> if the graph already has an invocation with that uid
+     */
+    public boolean addVertex(JobInvocation job) {
+        int uid = job.getUid();
+        if (uid < 0) {
+            throw new IllegalArgumentException("invalid uid " + uid + " for " + job.getName());
+        }
+        AtomicReferenceArray<JobInvocation> chunk = vertexChunk(uid >>> CHUNK_BITS);
+        if (!chunk.compareAndSet(uid & CHUNK_MASK, null, job)) {
+            return false;
+        }
+        int max;
+        while ((max = maxUid.get()) < uid && !maxUid.compareAndSet(max, uid)) {
+            // retry
+        }
+        vertexCount.incrementAndGet();
+        return true;
+    }
+
+    public void addEdge(JobInvocation source, JobInvocation target) {
+        long edge = ((long) indexOf(source) << 32) | (indexOf(target) & 0xFFFFFFFFL);
+        int i = edgeCount.getAndIncrement();
+        edgeChunk(i >>> CHUNK_BITS).set(i & CHUNK_MASK, edge);
+    }
+
+    private int indexOf(JobInvocation job) {
+        int uid = job.getUid();
+        if (getVertex(uid) == null) {
+            throw new IllegalArgumentException("no such vertex in graph: " + job.getName());
+        }
+        return uid;
+    }
+
+    public JobInvocation getVertex(int uid) {
+        if (uid < 0) {
+            return null;
+        }
+        AtomicReferenceArray<JobInvocation>[] directory = vertices;
+        int c = uid >>> CHUNK_BITS;
+        if (c >= directory.length || directory[c] == null) {
+            return null;
+        }
+        return directory[c].get(uid & CHUNK_MASK);
+    }
+
+    /**
+     * The invocations, in the order they were created.
+     */
+    public List<JobInvocation> getVertices() {
+        int max = maxUid.get();
+        List<JobInvocation> list = new ArrayList<JobInvocation>(vertexCount.get());
+        for (int uid = 0; uid <= max; uid++) {
+            JobInvocation job = getVertex(uid);
+            if (job != null) {
+                list.add(job);
+            }
+        }
+        return list;
+    }
+
+    public int getVertexCount() {
+        return vertexCount.get();
+    }
+
+    /**
+     * The number of edges reserved so far. An edge being added may not be readable yet,
+     * {@link #getEdge(int)} returns 0 for it.
+     */
+    public int getEdgeCount() {
+        return edgeCount.get();
+    }
+
+    /**
+     * The edge at the given index: the uid of its source in the high int, the uid of its target in the low int.
+     */
+    /* package */ long getEdge(int i) {
+        AtomicLongArray[] directory = edges;
+        int c = i >>> CHUNK_BITS;
+        if (c >= directory.length || directory[c] == null) {
+            return 0L;
+        }
+        return directory[c].get(i & CHUNK_MASK);
+    }
+
+    /**
+     * The number of chunks of vertices and edges allocated so far.
+     */
+    /* package */ int getChunkCount() {
+        return countChunks(vertices) + countChunks(edges);
+    }
+
+    private static int countChunks(Object[] directory) {
+        int count = 0;
+        for (Object chunk : directory) {
+            if (chunk != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /* package */ static int source(long edge) {
+        return (int) (edge >>> 32);
+    }
+
+    /* package */ static int target(long edge) {
+        return (int) edge;
+    }
+
+    /**
+     * A read-only JGraphT copy of the graph as it is now. It is built for each call and not kept, so callers that
+     * need it several times should hold on to it.
+     */
+    public DirectedGraph<JobInvocation, JobEdge> asDirectedGraph() {
+        DirectedGraph<JobInvocation, JobEdge> g = new SimpleDirectedGraph<JobInvocation, JobEdge>(JobEdge.class);
+        for (JobInvocation job : getVertices()) {
+            g.addVertex(job);
+        }
+        for (int i = 0, n = edgeCount.get(); i < n; i++) {
+            long edge = getEdge(i);
+            JobInvocation source = getVertex(source(edge));
+            JobInvocation target = getVertex(target(edge));
+            if (edge == 0L || !g.containsVertex(source) || !g.containsVertex(target)) {
+                // still being added
+                continue;
+            }
+            g.addEdge(source, target, new JobEdge(source, target));
+        }
+        return new UnmodifiableDirectedGraph<JobInvocation, JobEdge>(g);
+    }
+
+    private AtomicReferenceArray<JobInvocation> vertexChunk(int c) {
+        AtomicReferenceArray<JobInvocation>[] directory = vertices;
+        if (c < directory.length && directory[c] != null) {
+            return directory[c];
+        }
+        synchronized (this) {
+            directory = vertices;
+            if (c >= directory.length) {
+                directory = Arrays.copyOf(directory, Math.max(c + 1, directory.length * 2));
+            }
+            if (directory[c] == null) {
+                directory[c] = new AtomicReferenceArray<JobInvocation>(CHUNK_SIZE);
+            }
+            // publish the directory again, so the new chunk is visible to readers
+            vertices = directory;
+            return directory[c];
+        }
+    }
+
+    private AtomicLongArray edgeChunk(int c) {
+        AtomicLongArray[] directory = edges;
+        if (c < directory.length && directory[c] != null) {
+            return directory[c];
+        }
+        synchronized (this) {
+            directory = edges;
+            if (c >= directory.length) {
+                directory = Arrays.copyOf(directory, Math.max(c + 1, directory.length * 2));
+            }
+            if (directory[c] == null) {
+                directory[c] = new AtomicLongArray(CHUNK_SIZE);
+            }
+            edges = directory;
+            return directory[c];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<JobInvocation>[] newVertexDirectory(int size) {
+        return new AtomicReferenceArray[size];
+    }
+}
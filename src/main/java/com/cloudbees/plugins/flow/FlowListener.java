@@ -24,46 +24,148 @@
 
 package com.cloudbees.plugins.flow;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import hudson.Extension;
+import hudson.model.Queue;
 import hudson.model.TaskListener;
 import hudson.model.Run;
-import hudson.model.Cause;
 import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
 
+/**
+ * Dispatches build events to the {@link JobInvocation} that scheduled the build.
+ * <p>
+ * This listener is called for every build on the instance, so downstream builds are found
+ * with a single lookup by queue item id rather than by inspecting the causes of each build,
+ * and no lock is held: invocations handle concurrent events themselves.
+ * <p>
+ * Invocations coalesced with a build scheduled by someone else are kept apart, so the lookup
+ * of the common case stays a single one.
+ */
 @Extension
 public class FlowListener extends RunListener<Run<?, ?>> {
 
+    private static final ConcurrentMap<Long, JobInvocation> INVOCATIONS = new ConcurrentHashMap<Long, JobInvocation>();
+
+    private static final ConcurrentMap<Long, List<JobInvocation>> COALESCED = new ConcurrentHashMap<Long, List<JobInvocation>>();
+
+    /* package */ static void register(long queueId, JobInvocation job) {
+        INVOCATIONS.put(queueId, job);
+    }
+
+    /**
+     * Has the invocation follow the build of the given queue item, whoever scheduled it.
+     */
+    /* package */ static void attach(long queueId, JobInvocation job) {
+        List<JobInvocation> jobs = COALESCED.get(queueId);
+        if (jobs == null) {
+            List<JobInvocation> created = new CopyOnWriteArrayList<JobInvocation>();
+            jobs = COALESCED.putIfAbsent(queueId, created);
+            if (jobs == null) {
+                jobs = created;
+            }
+        }
+        jobs.add(job);
+    }
+
+    /* package */ static void detach(long queueId, JobInvocation job) {
+        List<JobInvocation> jobs = COALESCED.get(queueId);
+        if (jobs != null) {
+            jobs.remove(job);
+        }
+    }
+
+    /**
+     * The invocations coalesced with the build of the given queue item.
+     */
+    /* package */ static List<JobInvocation> coalesced(long queueId) {
+        List<JobInvocation> jobs = COALESCED.get(queueId);
+        return jobs != null ? jobs : Collections.<JobInvocation>emptyList();
+    }
+
+    /* package */ static JobInvocation unregister(long queueId) {
+        return INVOCATIONS.remove(queueId);
+    }
+
+    /* package */ static JobInvocation lookup(long queueId) {
+        return INVOCATIONS.get(queueId);
+    }
+
+    /* package */ static int size() {
+        return INVOCATIONS.size();
+    }
+
     @Override
-    public synchronized void onStarted(Run<?, ?> startedBuild,
+    public void onStarted(Run<?, ?> startedBuild,
             TaskListener listener) {
-        List<Cause> causes = startedBuild.getCauses();
-        for (Cause cause : causes) {
-            if (cause instanceof FlowCause) {
-                ((FlowCause) cause).getAssociatedJob().buildStarted(
-                        startedBuild);
+        JobInvocation job = INVOCATIONS.get(startedBuild.getQueueId());
+        if (job != null) {
+            if (CriticalPathQueueSorter.ENABLED) {
+                CriticalPathAction.removeFrom(startedBuild);
+            }
+            job.buildStarted(startedBuild);
+        }
+        if (!COALESCED.isEmpty()) {
+            for (JobInvocation coalesced : coalesced(startedBuild.getQueueId())) {
+                coalesced.buildStarted(startedBuild);
             }
         }
     }
 
     @Override
-    public synchronized void onCompleted(Run<?, ?> finishedBuild,
+    public void onCompleted(Run<?, ?> finishedBuild,
             TaskListener listener) {
-        List<Cause> causes = finishedBuild.getCauses();
-        for (Cause cause : causes) {
-            if (cause instanceof FlowCause) {
-                ((FlowCause) cause).getAssociatedJob().buildCompleted();
+        JobInvocation job = INVOCATIONS.get(finishedBuild.getQueueId());
+        if (job != null) {
+            job.buildCompleted();
+        }
+        if (!COALESCED.isEmpty()) {
+            for (JobInvocation coalesced : coalesced(finishedBuild.getQueueId())) {
+                coalesced.buildCompleted();
             }
         }
     }
 
     @Override
-    public synchronized void onFinalized(Run<?, ?> finalizedBuild) {
-        List<Cause> causes = finalizedBuild.getCauses();
-        for (Cause cause : causes) {
-            if (cause instanceof FlowCause) {
-                ((FlowCause) cause).getAssociatedJob().buildFinalized();
+    public void onFinalized(Run<?, ?> finalizedBuild) {
+        JobInvocation job = INVOCATIONS.remove(finalizedBuild.getQueueId());
+        if (job != null) {
+            job.buildFinalized();
+        }
+        if (!COALESCED.isEmpty()) {
+            List<JobInvocation> jobs = COALESCED.remove(finalizedBuild.getQueueId());
+            if (jobs != null) {
+                for (JobInvocation coalesced : jobs) {
+                    coalesced.buildFinalized();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes up invocations whose item is cancelled from the queue, as no build event will follow.
+     */
+    @Extension
+    public static class CancelledItemListener extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (li.isCancelled()) {
+                JobInvocation job = INVOCATIONS.remove(li.getId());
+                if (job != null) {
+                    job.buildCancelled();
+                }
+                List<JobInvocation> jobs = COALESCED.remove(li.getId());
+                if (jobs != null) {
+                    for (JobInvocation coalesced : jobs) {
+                        coalesced.buildCancelled();
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.Cause;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cause of a flow run that resumes a run interrupted by a restart of Jenkins. It carries the checkpoint
+ * of the interrupted run while the resumption is queued, so that it survives another restart, and drops it
+ * once the run has read it so that the build record doesn't keep it.
+ */
+public class FlowResumeCause extends Cause {
+
+    private final String flow;
+    private final int number;
+    // null once the resuming run has taken them
+    private volatile List<FlowCheckpoint.Entry> entries;
+
+    public FlowResumeCause(FlowRun interrupted, List<FlowCheckpoint.Entry> entries) {
+        this.flow = interrupted.getParent().getFullName();
+        this.number = interrupted.getNumber();
+        this.entries = new ArrayList<FlowCheckpoint.Entry>(entries);
+    }
+
+    public String getBuildFlow() {
+        return flow;
+    }
+
+    public int getBuildNumber() {
+        return number;
+    }
+
+    /**
+     * Hands the builds the interrupted run had triggered over to the run resuming it, only once.
+     */
+    /* package */ synchronized List<FlowCheckpoint.Entry> takeEntries() {
+        List<FlowCheckpoint.Entry> taken = entries;
+        entries = null;
+        return taken != null ? taken : Collections.<FlowCheckpoint.Entry>emptyList();
+    }
+
+    @Override
+    public String getShortDescription() {
+        return Messages.FlowResumeCause_ShortDescription(flow, String.valueOf(number));
+    }
+}
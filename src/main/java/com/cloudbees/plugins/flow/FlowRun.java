@@ -27,25 +27,40 @@ package com.cloudbees.plugins.flow;
 import static hudson.model.Result.FAILURE;
 import static hudson.model.Result.SUCCESS;
 import hudson.Util;
+import hudson.diagnosis.OldDataMonitor;
 import hudson.model.Action;
 import hudson.model.Build;
 import hudson.model.BuildListener;
+import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.slaves.WorkspaceList;
+
+import javax.servlet.http.HttpServletResponse;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.codehaus.groovy.control.CompilationFailedException;
 import org.jgrapht.DirectedGraph;
 import org.jgrapht.ext.DOTExporter;
-import org.jgrapht.graph.SimpleDirectedGraph;
+import org.jgrapht.ext.IntegerNameProvider;
+import org.jgrapht.ext.StringNameProvider;
+import org.jgrapht.graph.DefaultEdge;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -57,20 +72,47 @@ import org.kohsuke.stapler.StaplerResponse;
 public class FlowRun extends Build<BuildFlow, FlowRun> {
 
     private static final Logger LOGGER = Logger.getLogger(FlowRun.class.getName());
+
+    /**
+     * Number of builds completing parallel branches above which they are joined through a single vertex of the graph.
+     */
+    public static int JOIN_THRESHOLD = Integer.getInteger(FlowRun.class.getName() + ".joinThreshold", 16);
     
     private String dsl;
     private String dslFile;
 
     private boolean buildNeedsWorkspace;
 
+    private transient boolean releaseWorkspace;
+
     private JobInvocation.Start startJob;
 
+    // Only set when loading a record from a version that kept the graph in build.xml,
+    // it is then moved to its own file. See JobsGraphFile.
     private DirectedGraph<JobInvocation, JobEdge> jobsGraph;
 
+    // loaded on demand for completed runs
+    private transient volatile FlowGraph graph;
+
     private transient ThreadLocal<FlowState> state = new ThreadLocal<FlowState>();
     
     private transient AtomicInteger buildIndex = new AtomicInteger(1);
 
+    private transient AtomicInteger parallelBranches = new AtomicInteger();
+
+    private transient AtomicBoolean parallelSaturated = new AtomicBoolean();
+
+    private transient FlowScheduler scheduler;
+
+    private transient boolean coalescing;
+
+    private transient boolean continuingOnCompletion;
+
+    private transient volatile FlowAnalysis analysis;
+
+    // builds of the interrupted run this one resumes, see FlowCheckpoint
+    private transient volatile FlowCheckpoint.Replay replay;
+
     public FlowRun(BuildFlow job, File buildDir) throws IOException {
         super(job, buildDir);
         setup(job);
@@ -82,23 +124,55 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
     }
 
     private void setup(BuildFlow job) {
-        if (jobsGraph == null) {
-            jobsGraph = new SimpleDirectedGraph<JobInvocation, JobEdge>(JobEdge.class);
-        }
+        graph = new FlowGraph();
         if (startJob == null) {
             startJob = new JobInvocation.Start(this);
         }
         this.dsl = job.getDsl();
         this.dslFile = job.getDslFile();
         this.buildNeedsWorkspace = job.getBuildNeedsWorkspace();
+        this.releaseWorkspace = job.isReleaseWorkspace();
+        this.scheduler = job.getScheduler();
+        this.coalescing = job.isCoalesceBuilds();
+        this.continuingOnCompletion = job.isContinueOnCompletion();
         startJob.buildStarted(this);
-        jobsGraph.addVertex(startJob);
+        graph.addVertex(startJob);
         state.set(new FlowState(SUCCESS, startJob));
     }
 
     /* package */ void schedule(JobInvocation job, List<Action> actions) throws ExecutionException, InterruptedException {
         addBuild(job);
-        job.run(new FlowCause(this, job), actions);
+        trigger(job, actions);
+    }
+
+    /**
+     * Schedules a build the flow doesn't wait for: it is chained after the last completed builds,
+     * but the next builds won't be chained after it until it is joined.
+     */
+    /* package */ void scheduleAsync(JobInvocation job, List<Action> actions) throws ExecutionException, InterruptedException {
+        addAsyncBuild(job);
+        trigger(job, actions);
+    }
+
+    /**
+     * Records a past build in place of the given invocation, which is then not scheduled.
+     */
+    /* package */ void reuse(JobInvocation job, Run build) throws ExecutionException, InterruptedException {
+        addBuild(job);
+        job.reuse(build);
+        getState().setResult(build.getResult());
+    }
+
+    /**
+     * Triggers the build of the invocation, unless it stands for a build of the interrupted run this one resumes.
+     */
+    private void trigger(JobInvocation job, List<Action> actions) {
+        job.setReplayKey(FlowCheckpoint.keyOf(job, actions));
+        FlowCheckpoint.Replay r = replay;
+        FlowCheckpoint.Entry entry = r != null ? r.take(job.getReplayKey()) : null;
+        if (entry == null || !job.resume(entry)) {
+            job.run(new FlowCause(this, job), actions);
+        }
     }
 
     /* package */ Run waitForCompletion(JobInvocation job) throws ExecutionException, InterruptedException {
@@ -118,11 +192,119 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
     }
 
     /* package */ void setState(FlowState s) {
-        state.set(s);
+        if (s == null) {
+            state.remove();
+        } else {
+            state.set(s);
+        }
     }
 
+    /**
+     * The scheduler this run triggers its builds with.
+     */
+    public FlowScheduler getScheduler() {
+        return scheduler != null ? scheduler : JenkinsQueueScheduler.INSTANCE;
+    }
+
+    /**
+     * Whether builds identical to one already queued or running follow that build instead of failing to be scheduled.
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Whether the builds of this run that don't say otherwise let the flow move on once they complete,
+     * and are finalized in the background.
+     */
+    public boolean isContinuingOnCompletion() {
+        return continuingOnCompletion;
+    }
+
+    /**
+     * Number of parallel branches of this flow currently running on pooled threads.
+     */
+    /* package */ AtomicInteger getParallelBranches() {
+        return parallelBranches;
+    }
+
+    /**
+     * Records that a parallel branch of this flow had to run in the calling thread.
+     *
+     * @return true the first time only
+     */
+    /* package */ boolean markParallelSaturated() {
+        return parallelSaturated.compareAndSet(false, true);
+    }
+
+    /**
+     * A read-only copy of the graph of the job invocations of this run, as it is now.
+     */
     public DirectedGraph<JobInvocation, JobEdge> getJobsGraph() {
-        return jobsGraph;
+        return getFlowGraph().asDirectedGraph();
+    }
+
+    public FlowGraph getFlowGraph() {
+        FlowGraph g = graph;
+        if (g == null) {
+            synchronized (this) {
+                g = graph;
+                if (g == null) {
+                    g = loadFlowGraph();
+                }
+            }
+        }
+        return g;
+    }
+
+    private FlowGraph loadFlowGraph() {
+        File file = getJobsGraphFile();
+        if (file.exists()) {
+            try {
+                graph = JobsGraphFile.read(file, this, startJob);
+                return graph;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the jobs graph of " + this, e);
+            }
+        }
+        // don't keep it, so that saving the run can't overwrite the file with an empty graph
+        FlowGraph g = new FlowGraph();
+        if (startJob != null) {
+            g.addVertex(startJob);
+        }
+        return g;
+    }
+
+    private File getJobsGraphFile() {
+        return new File(getRootDir(), JobsGraphFile.FILE_NAME);
+    }
+
+    @Override
+    protected void onLoad() {
+        super.onLoad();
+        // drop the graph setup() created before the record was read, the actual one is read from its file
+        // when needed, unless it came with a record from an older version
+        graph = jobsGraph != null ? FlowGraph.of(jobsGraph) : null;
+        if (jobsGraph != null) {
+            jobsGraph = null;
+            // build.xml keeps the old graph until it is saved again, which takes precedence
+            try {
+                JobsGraphFile.write(getJobsGraphFile(), graph);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to move the jobs graph of " + this + " to its own file", e);
+            }
+            OldDataMonitor.report(this, "0.21");
+        }
+    }
+
+    @Override
+    public synchronized void save() throws IOException {
+        // write the graph first, so build.xml never lacks its graph
+        FlowGraph g = graph;
+        if (g != null) {
+            JobsGraphFile.write(getJobsGraphFile(), g);
+        }
+        super.save();
     }
 
     public JobInvocation getStartJob() {
@@ -134,25 +316,137 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
     }
 
     public void doGetDot(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        new DOTExporter<JobInvocation, JobEdge>().export(rsp.getWriter(), jobsGraph);
+        new DOTExporter<JobInvocation, JobEdge>().export(rsp.getWriter(), getJobsGraph());
     }
 
-    public synchronized void addBuild(JobInvocation job) throws ExecutionException, InterruptedException {
-        jobsGraph.addVertex(job);
-        for (JobInvocation up : state.get().getLastCompleted()) {
-            String edge = up.getId() + " => " + job.getId();
-            LOGGER.fine("added build to execution graph " + edge);
-            jobsGraph.addEdge(up, job, new JobEdge(up, job));
+    /**
+     * The graph of builds the DSL of this run predicts, from its literal build calls, before they run.
+     * <code>null</code> if the DSL doesn't parse.
+     */
+    public DirectedGraph<FlowAnalysis.JobReference, DefaultEdge> getPredictedGraph() {
+        FlowAnalysis a = analysis;
+        if (a == null && dsl != null) {
+            try {
+                a = analysis = FlowAnalysis.of(dsl);
+            } catch (CompilationFailedException e) {
+                return null;
+            }
         }
+        return a != null ? a.getPredictedGraph() : null;
+    }
+
+    /* package */ void setAnalysis(FlowAnalysis analysis) {
+        this.analysis = analysis;
+    }
+
+    public void doGetPredictedDot(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        DirectedGraph<FlowAnalysis.JobReference, DefaultEdge> predicted = getPredictedGraph();
+        if (predicted == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        new DOTExporter<FlowAnalysis.JobReference, DefaultEdge>(new IntegerNameProvider<FlowAnalysis.JobReference>(),
+                new StringNameProvider<FlowAnalysis.JobReference>(), null).export(rsp.getWriter(), predicted);
+    }
+
+    public void addBuild(JobInvocation job) throws ExecutionException, InterruptedException {
+        addAsyncBuild(job);
         state.get().setLastCompleted(job);
     }
 
+    /* package */ void addAsyncBuild(JobInvocation job) {
+        // no lock: the graph takes concurrent additions, and the state is local to the thread
+        graph.addVertex(job);
+        for (JobInvocation up : state.get().getLastCompleted()) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("added build to execution graph " + up.getId() + " => " + job.getId());
+            }
+            graph.addEdge(up, job);
+        }
+    }
+
+    /**
+     * Adds the builds of a declared graph before any of them runs, so that the jobs graph holds the plan they run
+     * by. Builds with no predecessor are chained after the last completed builds.
+     *
+     * @param jobs the builds, each one after its predecessors
+     */
+    /* package */ void addPlan(List<JobInvocation> jobs, Map<JobInvocation, ? extends Collection<JobInvocation>> predecessors) {
+        Set<JobInvocation> upstream = state.get().getLastCompleted();
+        for (JobInvocation job : jobs) {
+            graph.addVertex(job);
+            Collection<JobInvocation> before = predecessors.get(job);
+            for (JobInvocation up : before == null || before.isEmpty() ? upstream : before) {
+                graph.addEdge(up, job);
+            }
+        }
+    }
+
+    /**
+     * The successors of each of the given builds among them, as recorded in the jobs graph.
+     */
+    /* package */ Map<JobInvocation, List<JobInvocation>> successorsOf(Collection<JobInvocation> jobs) {
+        Map<Integer, JobInvocation> byUid = new HashMap<Integer, JobInvocation>();
+        Map<JobInvocation, List<JobInvocation>> successors = new HashMap<JobInvocation, List<JobInvocation>>();
+        for (JobInvocation job : jobs) {
+            byUid.put(job.getUid(), job);
+            successors.put(job, new ArrayList<JobInvocation>());
+        }
+        FlowGraph g = getFlowGraph();
+        for (int i = 0, n = g.getEdgeCount(); i < n; i++) {
+            long edge = g.getEdge(i);
+            if (edge == 0L) {
+                continue;
+            }
+            JobInvocation source = byUid.get(FlowGraph.source(edge));
+            JobInvocation target = byUid.get(FlowGraph.target(edge));
+            if (source != null && target != null) {
+                successors.get(source).add(target);
+            }
+        }
+        return successors;
+    }
+
+    /**
+     * Runs a build {@link #addPlan} already added to the graph.
+     */
+    /* package */ void schedulePlanned(JobInvocation job, List<Action> actions) throws ExecutionException, InterruptedException {
+        trigger(job, actions);
+    }
+
+    /**
+     * Joins the last builds of parallel branches. Past {@link #JOIN_THRESHOLD} builds they are chained to a single
+     * {@link JobInvocation.Join} vertex, so the builds that follow depend on it alone instead of on each of them.
+     *
+     * @return what the next builds should be chained after
+     */
+    /* package */ Set<JobInvocation> joinBranches(Set<JobInvocation> lastCompleted) {
+        if (lastCompleted.size() <= JOIN_THRESHOLD) {
+            return lastCompleted;
+        }
+        JobInvocation join = new JobInvocation.Join(this);
+        graph.addVertex(join);
+        for (JobInvocation up : lastCompleted) {
+            graph.addEdge(up, join);
+        }
+        return Collections.singleton(join);
+    }
+
     @Override
     public void run() {
-        if (buildNeedsWorkspace) {
-            execute(new BuildWithWorkspaceRunnerImpl(dsl, dslFile));
-        } else {
-            execute(new FlyweightTaskRunnerImpl(dsl));
+        FlowResumeCause resumed = getCause(FlowResumeCause.class);
+        if (resumed != null) {
+            replay = new FlowCheckpoint.Replay(resumed.takeEntries());
+        }
+        FlowCheckpoint checkpoint = FlowCheckpoint.start(this);
+        try {
+            if (buildNeedsWorkspace) {
+                execute(new BuildWithWorkspaceRunnerImpl(dsl, dslFile, releaseWorkspace));
+            } else {
+                execute(new FlyweightTaskRunnerImpl(dsl));
+            }
+        } finally {
+            checkpoint.stop();
         }
     }
 
@@ -160,10 +454,31 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
 
         private final String dsl;
         private final String dslFile;
+        private final boolean releaseWorkspace;
+
+        private SuspendableLease lease;
 
         public BuildWithWorkspaceRunnerImpl(String dsl, String dslFile) {
+            this(dsl, dslFile, false);
+        }
+
+        /**
+         * @param releaseWorkspace whether to let other builds use the workspace while the flow waits on its builds
+         */
+        public BuildWithWorkspaceRunnerImpl(String dsl, String dslFile, boolean releaseWorkspace) {
             this.dsl = dsl;
             this.dslFile = dslFile;
+            this.releaseWorkspace = releaseWorkspace;
+        }
+
+        @Override
+        protected WorkspaceList.Lease decideWorkspace(Node n, WorkspaceList wsl) throws InterruptedException, IOException {
+            WorkspaceList.Lease l = super.decideWorkspace(n, wsl);
+            if (!releaseWorkspace) {
+                return l;
+            }
+            lease = new SuspendableLease(l, wsl);
+            return lease;
         }
 
         protected Result doRun(BuildListener listener) throws Exception {
@@ -172,12 +487,23 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
 
             try {
                 setResult(SUCCESS);
+                String script = dsl;
                 if (dslFile != null) {
                     listener.getLogger().printf("[build-flow] reading DSL from file '%s'\n", dslFile);
-                    String fileContent = getWorkspace().child(dslFile).readToString();
-                    new FlowDSL().executeFlowScript(FlowRun.this, fileContent, listener);
+                    script = WorkspaceFileCache.get().read(getWorkspace().child(dslFile));
+                }
+                if (lease == null) {
+                    new FlowDSL().executeFlowScript(FlowRun.this, script, listener);
                 } else {
-                    new FlowDSL().executeFlowScript(FlowRun.this, dsl, listener);
+                    // the workspace is only needed to read the DSL and for the steps around the flow
+                    listener.getLogger().println("[build-flow] releasing the workspace while the flow runs");
+                    lease.suspend();
+                    try {
+                        new FlowDSL().executeFlowScript(FlowRun.this, script, listener);
+                    } finally {
+                        listener.getLogger().println("[build-flow] acquiring the workspace again");
+                        lease.resume();
+                    }
                 }
             } finally {
                 boolean failed=false;
@@ -205,6 +531,46 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
         }
     }
 
+    /**
+     * Workspace lease the build can give back for a while, and acquire again, before it is released for good.
+     */
+    private static final class SuspendableLease extends WorkspaceList.Lease {
+
+        private final WorkspaceList workspaces;
+        private WorkspaceList.Lease current;
+
+        SuspendableLease(WorkspaceList.Lease lease, WorkspaceList workspaces) {
+            super(lease.path);
+            this.workspaces = workspaces;
+            this.current = lease;
+        }
+
+        synchronized void suspend() {
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+        }
+
+        /**
+         * Waits for the workspace to be free again, if another build took it meanwhile.
+         */
+        void resume() throws InterruptedException {
+            WorkspaceList.Lease l = workspaces.acquire(path);
+            synchronized (this) {
+                current = l;
+            }
+        }
+
+        @Override
+        public synchronized void release() {
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+        }
+    }
+
     protected class FlyweightTaskRunnerImpl extends RunExecution {
 
         private final String dsl;
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.Run;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the builds a flow triggers, and reports their lifecycle to the {@link JobInvocation} that asked for them:
+ * {@link JobInvocation#buildStarted(Run)}, {@link JobInvocation#buildCompleted()},
+ * {@link JobInvocation#buildFinalized()}, or {@link JobInvocation#buildCancelled()} for builds that never start.
+ * <p>
+ * {@link JenkinsQueueScheduler} schedules real builds through the Jenkins queue, and is used unless
+ * {@link BuildFlow#setScheduler(FlowScheduler)} says otherwise. {@link SimulatedFlowScheduler} only pretends to,
+ * which lets large flows be load tested without an executor.
+ */
+public abstract class FlowScheduler {
+
+    /**
+     * Schedules a build of the project.
+     *
+     * @return a future completed with the build once it is completed, or <code>null</code> if the build could not
+     *         be scheduled
+     */
+    public abstract Future<? extends Run<?, ?>> schedule(JobInvocation job, AbstractProject<?, ?> project,
+                                                          Cause cause, List<Action> actions);
+
+    /**
+     * Has the invocation follow a build scheduled for another invocation, of an interrupted run of the flow:
+     * the build if it is still running, else the queue item if it is still queued.
+     *
+     * @param build the build to follow, if it started
+     * @param queueId the id of the queue item to follow, if the build didn't start
+     * @return a future completed with the build once it is completed, or <code>null</code> if there is nothing
+     *         left to follow and the build has to be scheduled again
+     */
+    public Future<? extends Run<?, ?>> follow(JobInvocation job, AbstractProject<?, ?> project,
+                                              Run<?, ?> build, long queueId) {
+        return null;
+    }
+
+    /**
+     * Makes an attempt to abort the build of the invocation: it is removed from the queue if it has not started yet,
+     * interrupted otherwise.
+     *
+     * @return <code>true</code> if the build was aborted
+     */
+    public abstract boolean abort(JobInvocation job);
+
+    /**
+     * Removes the invocations that have not started yet from the queue.
+     *
+     * @return the invocations that were cancelled
+     */
+    public Set<JobInvocation> cancelQueued(Collection<JobInvocation> jobs) {
+        Set<JobInvocation> cancelled = new HashSet<JobInvocation>();
+        for (JobInvocation job : jobs) {
+            if (!job.isStarted() && abort(job)) {
+                cancelled.add(job);
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Expected duration of a build of the project, in milliseconds, or -1 if unknown.
+     * Used to start the longest branches of a longest-first parallel block first.
+     */
+    public long estimateDuration(AbstractProject<?, ?> project) {
+        return project.getEstimatedDuration();
+    }
+
+    /**
+     * Whether finished builds can be found again by number in their project,
+     * so that invocations don't need to hold on to them.
+     */
+    public boolean isPersistent() {
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import hudson.Util;
+import hudson.model.Result;
+import hudson.util.spring.ClosureScript;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Keeps the compiled classes of flow DSL scripts, so that a flow triggered over and over
+ * does not pay for a Groovy compilation (and leave a one-off script class behind) on every run.
+ * <p>
+ * Scripts are keyed by the digest of their text and shared by all {@link BuildFlow} jobs.
+ * The least recently used entries are evicted once the cache holds more than {@link #MAX_SIZE} scripts.
+ */
+public final class FlowScriptCache {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowScriptCache.class.getName());
+
+    /**
+     * Maximum number of compiled scripts kept around.
+     */
+    public static int MAX_SIZE = Integer.getInteger(FlowScriptCache.class.getName() + ".size", 100);
+
+    private static final FlowScriptCache INSTANCE = new FlowScriptCache();
+
+    private final Map<String, Class<? extends Script>> scripts =
+            new LinkedHashMap<String, Class<? extends Script>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Class<? extends Script>> eldest) {
+                    return size() > MAX_SIZE;
+                }
+            };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public static FlowScriptCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates a new script instance for the given DSL, compiling it only if no compiled class is cached yet.
+     * Each call returns a distinct instance, so callers are free to set their own delegate on it.
+     */
+    public ClosureScript createScript(String dsl, ClassLoader loader) {
+        String key = Util.getDigestOf(dsl);
+        Class<? extends Script> clazz;
+        synchronized (scripts) {
+            clazz = scripts.get(key);
+        }
+        if (clazz != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            // compile outside of the lock, two concurrent misses for the same text just compile twice
+            clazz = compile(dsl, loader);
+            synchronized (scripts) {
+                scripts.put(key, clazz);
+            }
+        }
+        return (ClosureScript) InvokerHelper.createScript(clazz, new Binding());
+    }
+
+    /**
+     * Drops the compiled class for the given DSL text, if any.
+     */
+    public void invalidate(String dsl) {
+        if (dsl == null) return;
+        invalidateDigest(Util.getDigestOf(dsl));
+    }
+
+    /* package */ void invalidateDigest(String digest) {
+        synchronized (scripts) {
+            if (scripts.remove(digest) != null) {
+                LOGGER.fine("evicted compiled flow script " + digest);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Script> compile(String dsl, ClassLoader loader) {
+        // parse the script in such a way that it delegates to the flow object as default
+        CompilerConfiguration cc = new CompilerConfiguration();
+        cc.setScriptBaseClass(ClosureScript.class.getName());
+        ImportCustomizer ic = new ImportCustomizer();
+        ic.addStaticStars(Result.class.getName());
+        cc.addCompilationCustomizers(ic);
+
+        return new GroovyShell(loader, new Binding(), cc).parse(dsl).getClass();
+    }
+}
@@ -38,6 +38,14 @@ public class FlowState {
 
     private Set<JobInvocation> lastCompleted;
 
+    // set in the branches of fail-fast parallel blocks
+    private FlowCancellation cancellation;
+
+    private volatile boolean cancelled;
+
+    // set in the branches of longest-first parallel blocks, 0 otherwise
+    private long criticalPath;
+
     public FlowState(Result result, Set<JobInvocation> previous) {
         assert result != null;
         this.result = result;
@@ -71,6 +79,40 @@ public class FlowState {
         this.lastCompleted = lastCompleted;
     }
 
+    /**
+     * Cancellation of the fail-fast parallel block this state runs a branch of, if any.
+     */
+    public FlowCancellation getCancellation() {
+        return cancellation;
+    }
+
+    public void setCancellation(FlowCancellation cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Whether this branch was cancelled because a sibling branch failed. Its result doesn't count.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Estimated time, in milliseconds, of the longest chain of builds that goes through this branch of a
+     * longest-first parallel block, or 0. The builds of the branch carry it as a queue priority hint.
+     */
+    public long getCriticalPath() {
+        return criticalPath;
+    }
+
+    public void setCriticalPath(long criticalPath) {
+        this.criticalPath = criticalPath;
+    }
+
     public JobInvocation getLastBuild() {
         return this.lastCompleted.iterator().next();
     }
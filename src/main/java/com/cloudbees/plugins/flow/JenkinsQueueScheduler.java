@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Executor;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.queue.ScheduleResult;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Schedules builds through the Jenkins queue. {@link FlowListener} reports their lifecycle.
+ * <p>
+ * When the flow coalesces builds, a build identical to one already queued or running is not scheduled
+ * again: the invocation follows the existing build instead. Such shared builds are never aborted
+ * on behalf of a single flow, as other invocations still wait for them.
+ */
+public class JenkinsQueueScheduler extends FlowScheduler {
+
+    public static final JenkinsQueueScheduler INSTANCE = new JenkinsQueueScheduler();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Future<? extends Run<?, ?>> schedule(final JobInvocation job, final AbstractProject<?, ?> project,
+                                                 Cause cause, List<Action> actions) {
+        final List<Action> queueActions = new ArrayList<Action>(actions);
+        queueActions.add(new CauseAction(cause));
+        for (Action action : actions) {
+            if (action instanceof CriticalPathAction) {
+                CriticalPathQueueSorter.install();
+                break;
+            }
+        }
+        final boolean coalesce = job.getFlowRun() != null && job.getFlowRun().isCoalescing();
+        if (coalesce) {
+            Future<? extends Run<?, ?>> running = followRunning(job, project, actions);
+            if (running != null) {
+                return running;
+            }
+        }
+        final Queue.Item[] item = new Queue.Item[1];
+        // hold the queue lock until the item is indexed, so the build can't start unnoticed
+        Queue.withLock(new Runnable() {
+            public void run() {
+                ScheduleResult result = Jenkins.getInstance().getQueue().schedule2(project, project.getQuietPeriod(), queueActions);
+                item[0] = result.getCreateItem();
+                if (item[0] != null) {
+                    FlowListener.register(item[0].getId(), job);
+                } else if (coalesce && result.isAccepted()) {
+                    // the queue folded our item into an identical one, follow it
+                    item[0] = result.getItem();
+                    if (item[0] != null) {
+                        FlowListener.attach(item[0].getId(), job);
+                        job.markCoalesced();
+                    }
+                }
+            }
+        });
+        if (item[0] == null) {
+            return null;
+        }
+        job.setQueueId(item[0].getId());
+        return (Future) item[0].getFuture();
+    }
+
+    /**
+     * Attaches the invocation to a build of the project in progress with the same parameters, if any.
+     */
+    private Future<? extends Run<?, ?>> followRunning(JobInvocation job, AbstractProject<?, ?> project, List<Action> actions) {
+        ParametersAction parameters = null;
+        for (Action action : actions) {
+            if (action instanceof ParametersAction) {
+                parameters = (ParametersAction) action;
+                break;
+            }
+        }
+        Run<?, ?> build = project.getLastBuild();
+        if (build != null && !build.isBuilding()) {
+            build = build.getPreviousBuildInProgress();
+        }
+        for (; build != null; build = build.getPreviousBuildInProgress()) {
+            ParametersAction other = build.getAction(ParametersAction.class);
+            boolean same = parameters == null
+                    ? other == null || other.getParameters().isEmpty()
+                    : !parameters.shouldSchedule(new ArrayList<Action>(build.getActions()));
+            if (!same) {
+                continue;
+            }
+            Future<? extends Run<?, ?>> future = attach(job, build);
+            if (future != null) {
+                job.markCoalesced();
+            }
+            return future;
+        }
+        return null;
+    }
+
+    /**
+     * Has the invocation follow a build in progress, unless it is already completed.
+     */
+    private Future<? extends Run<?, ?>> attach(JobInvocation job, Run<?, ?> build) {
+        FlowListener.attach(build.getQueueId(), job);
+        // completion is only reported after the build stops building, check again now that we listen
+        if (!build.isBuilding()) {
+            FlowListener.detach(build.getQueueId(), job);
+            return null;
+        }
+        job.setQueueId(build.getQueueId());
+        job.buildStarted(build);
+        SettableFuture<Run<?, ?>> future = SettableFuture.create();
+        future.set(build);
+        return future;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Future<? extends Run<?, ?>> follow(final JobInvocation job, final AbstractProject<?, ?> project,
+                                              Run<?, ?> build, final long queueId) {
+        if (build != null) {
+            return build.isBuilding() ? attach(job, build) : null;
+        }
+        if (queueId == 0) {
+            return null;
+        }
+        final Queue.Item[] item = new Queue.Item[1];
+        // under the queue lock, so the item can't start before we listen to it
+        Queue.withLock(new Runnable() {
+            public void run() {
+                Queue.Item queued = Jenkins.getInstance().getQueue().getItem(queueId);
+                if (queued != null && queued.task == project) {
+                    FlowListener.attach(queueId, job);
+                    item[0] = queued;
+                }
+            }
+        });
+        if (item[0] == null) {
+            return null;
+        }
+        job.setQueueId(queueId);
+        return (Future) item[0].getFuture();
+    }
+
+    @Override
+    public boolean abort(JobInvocation job) {
+        if (isShared(job)) {
+            return false;
+        }
+        if (!job.isStarted()) {
+            // cancel our item in the queue, if it is still there.
+            Queue queue = Jenkins.getInstance().getQueue();
+            Queue.Item item = job.getQueueId() != 0 ? queue.getItem(job.getQueueId()) : null;
+            return item != null && queue.cancel(item);
+        }
+        if (!job.isCompleted()) {
+            Run<?, ?> build = job.getStartedBuild();
+            // as the task has already started we want to be kinder in recording the cause.
+            Executor executor = build != null ? build.getExecutor() : null;
+            if (executor == null && build != null) {
+                executor = build.getOneOffExecutor();
+            }
+            if (executor != null) {
+                executor.interrupt(Result.ABORTED, new FlowAbortedCause(job.getFlowRun()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the queue items with a single pass over the queue.
+     */
+    @Override
+    public Set<JobInvocation> cancelQueued(Collection<JobInvocation> jobs) {
+        final Map<Long, JobInvocation> queued = new HashMap<Long, JobInvocation>();
+        for (JobInvocation job : jobs) {
+            if (!job.isStarted() && job.getQueueId() != 0 && !isShared(job)) {
+                queued.put(job.getQueueId(), job);
+            }
+        }
+        final Set<JobInvocation> cancelled = new HashSet<JobInvocation>();
+        if (queued.isEmpty()) {
+            return cancelled;
+        }
+        final Queue queue = Jenkins.getInstance().getQueue();
+        Queue.withLock(new Runnable() {
+            public void run() {
+                for (Queue.Item item : queue.getItems()) {
+                    JobInvocation job = queued.get(item.getId());
+                    if (job != null && queue.cancel(item)) {
+                        cancelled.add(job);
+                    }
+                }
+            }
+        });
+        return cancelled;
+    }
+
+    private static boolean isShared(JobInvocation job) {
+        if (job.isCoalesced()) {
+            return true;
+        }
+        for (JobInvocation other : FlowListener.coalesced(job.getQueueId())) {
+            if (other.isCoalesced()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
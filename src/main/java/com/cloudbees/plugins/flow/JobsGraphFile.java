@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Stores the jobs graph of a {@link FlowRun} in its own file in the build directory, so that build.xml stays small
+ * and the graph is only read when something asks for it.
+ * <p>
+ * The format is a plain adjacency list, one vertex or edge per line:
+ * <pre>
+ * v &lt;uid&gt; &lt;build number&gt; &lt;flags&gt; &lt;job full name&gt;
+ * e &lt;source uid&gt; &lt;target uid&gt;
+ * </pre>
+ * where flags is a combination of {@link #STARTED}, {@link #COMPLETED}, {@link #FINALIZED}, {@link #CANCELLED},
+ * {@link #REUSED}, {@link #JOIN} and {@link #RESUMED}.
+ */
+final class JobsGraphFile {
+
+    static final String FILE_NAME = "jobsGraph.txt";
+
+    private static final String HEADER = "# build-flow jobs graph 1";
+
+    private static final int STARTED = 1;
+    private static final int COMPLETED = 2;
+    private static final int FINALIZED = 4;
+    private static final int CANCELLED = 8;
+    private static final int REUSED = 16;
+    // a JobInvocation.Join, which stands for the flow build itself
+    private static final int JOIN = 32;
+    // a build of the interrupted run the flow resumed
+    private static final int RESUMED = 64;
+
+    private JobsGraphFile() {}
+
+    static void write(File file, FlowGraph graph) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(file, "UTF-8");
+        try {
+            StringBuilder line = new StringBuilder(64);
+            w.write(HEADER);
+            w.write('\n');
+            writeGraph(w, graph, line);
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    private static void writeGraph(AtomicFileWriter w, FlowGraph graph, StringBuilder line) throws IOException {
+        for (JobInvocation job : graph.getVertices()) {
+            int flags = (job.isStarted() ? STARTED : 0)
+                    | (job.isCompleted() ? COMPLETED : 0)
+                    | (job.isFinalized() ? FINALIZED : 0)
+                    | (job.isCancelled() ? CANCELLED : 0)
+                    | (job.isReused() ? REUSED : 0)
+                    | (job instanceof JobInvocation.Join ? JOIN : 0)
+                    | (job.isResumed() ? RESUMED : 0);
+            line.setLength(0);
+            line.append("v ").append(job.getUid())
+                    .append(' ').append(job.getBuildNumber())
+                    .append(' ').append(flags)
+                    .append(' ').append(job.getName())
+                    .append('\n');
+            w.write(line.toString());
+        }
+        for (int i = 0, n = graph.getEdgeCount(); i < n; i++) {
+            long edge = graph.getEdge(i);
+            if (edge == 0L) {
+                // still being added
+                continue;
+            }
+            line.setLength(0);
+            line.append("e ").append(FlowGraph.source(edge))
+                    .append(' ').append(FlowGraph.target(edge))
+                    .append('\n');
+            w.write(line.toString());
+        }
+    }
+
+    /**
+     * @param start the start vertex of the run, reused for the vertex with the same uid
+     */
+    static FlowGraph read(File file, FlowRun run, JobInvocation start) throws IOException {
+        FlowGraph graph = new FlowGraph();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = r.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unexpected header in " + file + ": " + line);
+            }
+            while ((line = r.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] fields = line.split(" ", 5);
+                if (line.startsWith("v ") && fields.length == 5) {
+                    int uid = Integer.parseInt(fields[1]);
+                    JobInvocation job;
+                    int flags = Integer.parseInt(fields[3]);
+                    if (start != null && start.getUid() == uid) {
+                        job = start;
+                    } else if ((flags & JOIN) != 0) {
+                        job = new JobInvocation.Join(run, uid);
+                    } else {
+                        // the same jobs tend to be triggered over and over
+                        job = new JobInvocation(run, uid, fields[4].intern(), Integer.parseInt(fields[2]),
+                                (flags & STARTED) != 0, (flags & COMPLETED) != 0, (flags & FINALIZED) != 0);
+                        if ((flags & CANCELLED) != 0) {
+                            job.markCancelled();
+                        }
+                        if ((flags & REUSED) != 0) {
+                            job.markReused();
+                        }
+                        if ((flags & RESUMED) != 0) {
+                            job.markResumed();
+                        }
+                    }
+                    graph.addVertex(job);
+                } else if (line.startsWith("e ") && fields.length == 3) {
+                    JobInvocation source = graph.getVertex(Integer.parseInt(fields[1]));
+                    JobInvocation target = graph.getVertex(Integer.parseInt(fields[2]));
+                    if (source == null || target == null) {
+                        throw new IOException("Edge to an unknown vertex in " + file + ": " + line);
+                    }
+                    graph.addEdge(source, target);
+                } else {
+                    throw new IOException("Malformed line in " + file + ": " + line);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + file, e);
+        } finally {
+            r.close();
+        }
+        return graph;
+    }
+}
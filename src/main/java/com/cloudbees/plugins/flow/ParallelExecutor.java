@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the branches of {@code parallel} statements on a thread pool shared by all the flows of this Jenkins instance.
+ * <p>
+ * Branches are handed directly to a worker thread and never wait in a queue: a branch blocked on its own nested
+ * {@code parallel} children would otherwise hold the very threads its children are queued for. Instead, once
+ * {@link #MAX_BRANCHES} branches are running on the controller, or {@link #MAX_BRANCHES_PER_FLOW} for a single flow,
+ * further branches run in the thread that submits them. A saturated pool therefore degrades to sequential execution,
+ * it never blocks nor fails the flow, and the flow console tells so the first time it happens.
+ * <p>
+ * With {@link #VIRTUAL_THREADS} set, and on a JVM that supports them, each branch runs on its own virtual thread
+ * instead. Branches spend nearly all their time waiting for downstream builds, and {@link JobInvocation} waits on a
+ * {@link java.util.concurrent.locks.Condition} rather than a monitor, so those waits release the carrier thread and
+ * the number of platform threads stays flat however many branches are waiting.
+ */
+public final class ParallelExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelExecutor.class.getName());
+
+    private static final String THREAD_NAME = "BuildFlow parallel statement thread";
+
+    /**
+     * Run parallel branches on virtual threads, when the JVM supports them.
+     */
+    public static final boolean VIRTUAL_THREADS = Boolean.getBoolean(ParallelExecutor.class.getName() + ".virtualThreads");
+
+    /**
+     * Maximum number of parallel branches running concurrently on the controller.
+     */
+    public static int MAX_BRANCHES = Integer.getInteger(ParallelExecutor.class.getName() + ".maxBranches",
+            VIRTUAL_THREADS ? 65536 : 256);
+
+    /**
+     * Maximum number of parallel branches running concurrently for a single flow run.
+     */
+    public static int MAX_BRANCHES_PER_FLOW = Integer.getInteger(ParallelExecutor.class.getName() + ".maxBranchesPerFlow",
+            VIRTUAL_THREADS ? 16384 : 64);
+
+    private static final ParallelExecutor INSTANCE = new ParallelExecutor();
+
+    private final ExecutorService pool = createPool();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong ranInCaller = new AtomicLong();
+
+    public static ParallelExecutor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts a branch of the given flow, either on a pooled thread or, when saturated, in the current thread.
+     * In the later case the returned future is already done.
+     *
+     * @param listener the console of the flow, told when its branches start running sequentially
+     */
+    public <T> Future<T> submit(FlowRun flowRun, TaskListener listener, final Callable<T> branch) {
+        submitted.incrementAndGet();
+        final AtomicInteger perFlow = flowRun.getParallelBranches();
+        if (!tryAcquire(active, MAX_BRANCHES)) {
+            return runInCaller(flowRun, listener, branch, MAX_BRANCHES, "maxBranches");
+        }
+        if (!tryAcquire(perFlow, MAX_BRANCHES_PER_FLOW)) {
+            active.decrementAndGet();
+            return runInCaller(flowRun, listener, branch, MAX_BRANCHES_PER_FLOW, "maxBranchesPerFlow");
+        }
+
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                try {
+                    return branch.call();
+                } finally {
+                    perFlow.decrementAndGet();
+                    active.decrementAndGet();
+                }
+            }
+        });
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            perFlow.decrementAndGet();
+            active.decrementAndGet();
+            return runInCaller(flowRun, listener, branch, MAX_BRANCHES, "maxBranches");
+        }
+        return task;
+    }
+
+    private <T> Future<T> runInCaller(FlowRun flowRun, TaskListener listener, Callable<T> branch,
+                                      int limit, String property) {
+        ranInCaller.incrementAndGet();
+        LOGGER.fine("parallel branches saturated, running branch of " + flowRun + " in the calling thread");
+        if (flowRun.markParallelSaturated()) {
+            listener.getLogger().printf("[build-flow] %d parallel branches already running, further branches run "
+                    + "one after the other until some finish (see %s.%s)%n",
+                    limit, ParallelExecutor.class.getName(), property);
+        }
+        FutureTask<T> task = new FutureTask<T>(branch);
+        task.run();
+        return task;
+    }
+
+    private static boolean tryAcquire(AtomicInteger counter, int max) {
+        while (true) {
+            int current = counter.get();
+            if (current >= max) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static ExecutorService createPool() {
+        if (VIRTUAL_THREADS) {
+            ExecutorService virtual = createVirtualThreadPool();
+            if (virtual != null) {
+                return virtual;
+            }
+            LOGGER.warning("Virtual threads are not supported by this JVM, parallel branches use platform threads");
+        }
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), THREAD_NAME));
+    }
+
+    /**
+     * Looks up the virtual thread API reflectively, as the plugin still targets JVMs without it.
+     */
+    private static ExecutorService createVirtualThreadPool() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME + " #", 1L);
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to create a virtual thread executor", e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether branches actually run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return !(pool instanceof ThreadPoolExecutor);
+    }
+
+    /**
+     * Number of branches currently running on pooled threads.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Number of platform threads in the pool, either running a branch or idle.
+     * Virtual threads are not pooled, so this is zero when running on virtual threads.
+     */
+    public int getPoolSize() {
+        return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getPoolSize() : 0;
+    }
+
+    public int getLargestPoolSize() {
+        return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getLargestPoolSize() : 0;
+    }
+
+    /**
+     * Total number of branches submitted since startup.
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * Number of branches that ran in the calling thread because a cap was reached.
+     * This is the saturation metric: branches never wait in a queue.
+     */
+    public long getRanInCallerCount() {
+        return ranInCaller.get();
+    }
+}
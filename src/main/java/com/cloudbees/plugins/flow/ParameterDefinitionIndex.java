@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Saveable;
+import hudson.model.SimpleParameterDefinition;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parameter definitions of a job indexed by name, so that building the parameters of a triggered job doesn't
+ * walk its definitions again and again.
+ * <p>
+ * Default values are created for each build: a {@link ParameterValue} ends up in the build and may be changed
+ * there, by {@link ParameterValue#setDescription} for instance, so it can't be shared between builds.
+ * <p>
+ * Indexes are dropped when the job configuration is saved, renamed or deleted, and are checked against
+ * the current {@link ParametersDefinitionProperty} of the job before use.
+ */
+public final class ParameterDefinitionIndex {
+
+    private static final ConcurrentMap<String, ParameterDefinitionIndex> INDEXES = new ConcurrentHashMap<String, ParameterDefinitionIndex>();
+
+    private final ParametersDefinitionProperty property;
+
+    private final Map<String, ParameterDefinition> definitions;
+
+    private final List<ParameterDefinition> ordered;
+
+    // definitions that don't support creating a value from a String
+    private final Set<ParameterDefinition> unsupported = Collections.newSetFromMap(new ConcurrentHashMap<ParameterDefinition, Boolean>());
+
+    private ParameterDefinitionIndex(ParametersDefinitionProperty property) {
+        this.property = property;
+        this.ordered = property != null ? property.getParameterDefinitions() : Collections.<ParameterDefinition>emptyList();
+        Map<String, ParameterDefinition> byName = new LinkedHashMap<String, ParameterDefinition>();
+        for (ParameterDefinition definition : ordered) {
+            if (!byName.containsKey(definition.getName())) {
+                byName.put(definition.getName(), definition);
+            }
+        }
+        this.definitions = byName;
+    }
+
+    /**
+     * Index of the parameters currently defined by the job.
+     */
+    public static ParameterDefinitionIndex of(Job<?, ?> job) {
+        ParametersDefinitionProperty current = job.getProperty(ParametersDefinitionProperty.class);
+        String key = job.getFullName();
+        ParameterDefinitionIndex index = INDEXES.get(key);
+        if (index == null || index.property != current) {
+            index = new ParameterDefinitionIndex(current);
+            INDEXES.put(key, index);
+        }
+        return index;
+    }
+
+    /* package */ static void invalidate(String fullName) {
+        INDEXES.remove(fullName);
+    }
+
+    public ParameterDefinition get(String name) {
+        return definitions.get(name);
+    }
+
+    /**
+     * Creates a value with the type of the job definition for that parameter, when there is a simple one.
+     *
+     * @return null when the job doesn't define a simple parameter by that name, or the value doesn't suit it
+     */
+    public ParameterValue createValue(String name, Object value) {
+        ParameterDefinition definition = definitions.get(name);
+        if (!(definition instanceof SimpleParameterDefinition) || !(value instanceof CharSequence)
+                || unsupported.contains(definition)) {
+            return null;
+        }
+        try {
+            return ((SimpleParameterDefinition) definition).createValue(value.toString());
+        } catch (UnsupportedOperationException e) {
+            unsupported.add(definition);
+            return null;
+        } catch (Exception e) {
+            // This usually means the value isn't valid for the definition, we can't use it.
+            return null;
+        }
+    }
+
+    /**
+     * Adds the default value of every parameter of the job that is not already set.
+     */
+    public void addDefaults(Collection<ParameterValue> params, Set<String> alreadySet) {
+        for (ParameterDefinition definition : ordered) {
+            if (!alreadySet.contains(definition.getName())) {
+                params.add(definition.getDefaultParameterValue());
+            }
+        }
+    }
+
+    @Extension
+    public static class SaveListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                invalidate(((Job) o).getFullName());
+            }
+        }
+    }
+
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            invalidate(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate(oldFullName);
+            invalidate(newFullName);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pretends to run the builds of a flow: each build waits in a simulated queue, then runs, for times drawn from
+ * configurable distributions, and completes with a result drawn from a configurable distribution.
+ * <p>
+ * The jobs a flow triggers still have to exist, but none of them actually builds: the builds only live in memory
+ * and don't show in the history of their job. This makes it possible to load test a large flow, and measure the
+ * orchestration overhead of the plugin, in seconds:
+ * <pre>
+ * SimulatedFlowScheduler scheduler = new SimulatedFlowScheduler();
+ * scheduler.setQueueTime(SimulatedFlowScheduler.Distribution.uniform(0, 10));
+ * scheduler.setBuildTime(SimulatedFlowScheduler.Distribution.exponential(50));
+ * scheduler.addResult(null, Result.SUCCESS, 0.95);
+ * scheduler.addResult(null, Result.UNSTABLE, 0.05);
+ * flow.setScheduler(scheduler);
+ * </pre>
+ * Times are in milliseconds. Without any result configured, all builds succeed.
+ */
+public class SimulatedFlowScheduler extends FlowScheduler {
+
+    private final Random random = new Random();
+
+    private volatile Distribution queueTime = Distribution.fixed(0);
+    private volatile Distribution buildTime = Distribution.fixed(0);
+
+    // build times by job full name
+    private final Map<String, Distribution> buildTimes = new ConcurrentHashMap<String, Distribution>();
+
+    // result weights by job full name, the empty string holds the default ones as the map doesn't take null keys
+    private final Map<String, Map<Result, Double>> results = new ConcurrentHashMap<String, Map<Result, Double>>();
+
+    private final ConcurrentMap<String, AtomicInteger> numbers = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final ConcurrentMap<JobInvocation, SimulatedItem> items = new ConcurrentHashMap<JobInvocation, SimulatedItem>();
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong clock = new AtomicLong();
+
+    public SimulatedFlowScheduler() {
+        this(4);
+    }
+
+    /**
+     * @param threads number of threads starting and completing the simulated builds
+     */
+    public SimulatedFlowScheduler(int threads) {
+        timer = Executors.newScheduledThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "BuildFlow simulated scheduler"));
+    }
+
+    public void setQueueTime(Distribution queueTime) {
+        this.queueTime = queueTime;
+    }
+
+    public void setBuildTime(Distribution buildTime) {
+        this.buildTime = buildTime;
+    }
+
+    /**
+     * Sets the build time of a job, other jobs use the one set by {@link #setBuildTime(Distribution)}.
+     */
+    public void setBuildTime(String job, Distribution buildTime) {
+        buildTimes.put(job, buildTime);
+    }
+
+    /**
+     * Gives a result a weight among the results of the builds of a job.
+     *
+     * @param job full name of the job, or <code>null</code> or the empty string for the jobs that have no result
+     *            of their own
+     */
+    public synchronized void addResult(String job, Result result, double weight) {
+        String key = job != null ? job : "";
+        Map<Result, Double> weights = results.get(key);
+        Map<Result, Double> copy = weights != null
+                ? new LinkedHashMap<Result, Double>(weights) : new LinkedHashMap<Result, Double>();
+        copy.put(result, weight);
+        results.put(key, copy);
+    }
+
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Highest number of builds queued or running at the same time so far.
+     */
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * Simulated time, in milliseconds since the scheduler was created: the time the last build to complete so far
+     * completed at in simulated time. A build is queued at the simulated time it is scheduled at, so the difference
+     * between two readings is the makespan of what ran in between, without the overhead of the plugin nor of
+     * Jenkins. This holds as long as the builds complete in the same order as they would in simulated time.
+     */
+    public long getClock() {
+        return clock.get();
+    }
+
+    /**
+     * Stops the threads of the scheduler. The builds still waiting never complete.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public Future<? extends Run<?, ?>> schedule(JobInvocation job, AbstractProject<?, ?> project,
+                                                 Cause cause, List<Action> actions) {
+        SimulatedBuild build = new SimulatedBuild(project, nextNumber(project));
+        for (Action action : actions) {
+            build.addAction(action);
+        }
+        build.addAction(new CauseAction(cause));
+
+        final SimulatedItem item = new SimulatedItem(job, build);
+        long queued = queueTime.next(random);
+        item.startsAt = clock.get() + queued;
+        items.put(job, item);
+        scheduled.incrementAndGet();
+        int n = inFlight.incrementAndGet();
+        int peak;
+        do {
+            peak = peakInFlight.get();
+        } while (n > peak && !peakInFlight.compareAndSet(peak, n));
+        item.task = timer.schedule(new Runnable() {
+            public void run() {
+                start(item);
+            }
+        }, queued, TimeUnit.MILLISECONDS);
+        return item.future;
+    }
+
+    @Override
+    public boolean abort(JobInvocation job) {
+        SimulatedItem item = items.get(job);
+        if (item == null) {
+            return false;
+        }
+        boolean queued;
+        synchronized (item) {
+            if (item.state == State.QUEUED) {
+                item.state = State.CANCELLED;
+                queued = true;
+            } else if (item.state == State.RUNNING) {
+                queued = false;
+            } else {
+                return false;
+            }
+            item.task.cancel(false);
+        }
+        if (queued) {
+            items.remove(job);
+            inFlight.decrementAndGet();
+            item.future.cancel(false);
+            job.buildCancelled();
+        } else {
+            complete(item, Result.ABORTED, clock.get());
+        }
+        return true;
+    }
+
+    /**
+     * The mean build time of the project.
+     */
+    @Override
+    public long estimateDuration(AbstractProject<?, ?> project) {
+        return (long) buildTimeOf(project.getFullName()).getMean();
+    }
+
+    /**
+     * Simulated builds are not recorded by their job.
+     */
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    private void start(final SimulatedItem item) {
+        synchronized (item) {
+            if (item.state != State.QUEUED) {
+                return;
+            }
+            item.state = State.RUNNING;
+            long duration = buildTimeOf(item.build.getParent().getFullName()).next(random);
+            final long endsAt = item.startsAt + duration;
+            item.task = timer.schedule(new Runnable() {
+                public void run() {
+                    complete(item, nextResult(item.build.getParent().getFullName()), endsAt);
+                }
+            }, duration, TimeUnit.MILLISECONDS);
+        }
+        item.job.buildStarted(item.build);
+    }
+
+    /**
+     * @param endsAt simulated time the build completes at
+     */
+    private void complete(SimulatedItem item, Result result, long endsAt) {
+        synchronized (item) {
+            if (item.state != State.RUNNING) {
+                return;
+            }
+            item.state = State.DONE;
+        }
+        long now;
+        do {
+            now = clock.get();
+        } while (endsAt > now && !clock.compareAndSet(now, endsAt));
+        items.remove(item.job);
+        inFlight.decrementAndGet();
+        item.build.setResult(result);
+        completed.incrementAndGet();
+        item.job.buildCompleted();
+        item.future.set(item.build);
+        item.job.buildFinalized();
+    }
+
+    private Distribution buildTimeOf(String job) {
+        Distribution d = buildTimes.get(job);
+        return d != null ? d : buildTime;
+    }
+
+    private int nextNumber(Job<?, ?> project) {
+        String name = project.getFullName();
+        AtomicInteger number = numbers.get(name);
+        if (number == null) {
+            AtomicInteger previous = numbers.putIfAbsent(name, number = new AtomicInteger());
+            if (previous != null) {
+                number = previous;
+            }
+        }
+        return number.incrementAndGet();
+    }
+
+    private Result nextResult(String job) {
+        Map<Result, Double> weights = results.get(job);
+        if (weights == null) {
+            weights = results.get("");
+        }
+        if (weights == null || weights.isEmpty()) {
+            return Result.SUCCESS;
+        }
+        double total = 0;
+        for (double weight : weights.values()) {
+            total += weight;
+        }
+        double pick = random.nextDouble() * total;
+        Result result = Result.SUCCESS;
+        for (Map.Entry<Result, Double> weight : weights.entrySet()) {
+            result = weight.getKey();
+            pick -= weight.getValue();
+            if (pick < 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private enum State { QUEUED, RUNNING, DONE, CANCELLED }
+
+    private static final class SimulatedItem {
+        final JobInvocation job;
+        final SimulatedBuild build;
+        final SettableFuture<Run<?, ?>> future = SettableFuture.create();
+        State state = State.QUEUED;
+        Future<?> task;
+        // simulated time the build leaves the queue at
+        long startsAt;
+
+        SimulatedItem(JobInvocation job, SimulatedBuild build) {
+            this.job = job;
+            this.build = build;
+        }
+    }
+
+    /**
+     * A build that only lives in memory.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static class SimulatedBuild extends Run {
+
+        SimulatedBuild(Job<?, ?> job, int number) {
+            super((Job) job, System.currentTimeMillis());
+            this.number = number;
+        }
+    }
+
+    /**
+     * Distribution of times, in milliseconds.
+     */
+    public static abstract class Distribution {
+
+        public abstract long next(Random random);
+
+        public abstract double getMean();
+
+        public static Distribution fixed(final long millis) {
+            return new Distribution() {
+                @Override
+                public long next(Random random) {
+                    return millis;
+                }
+
+                @Override
+                public double getMean() {
+                    return millis;
+                }
+            };
+        }
+
+        public static Distribution uniform(final long min, final long max) {
+            if (max < min) {
+                throw new IllegalArgumentException("max " + max + " < min " + min);
+            }
+            return new Distribution() {
+                @Override
+                public long next(Random random) {
+                    return min + (long) (random.nextDouble() * (max - min));
+                }
+
+                @Override
+                public double getMean() {
+                    return (min + max) / 2.0;
+                }
+            };
+        }
+
+        public static Distribution exponential(final double mean) {
+            return new Distribution() {
+                @Override
+                public long next(Random random) {
+                    return (long) (-mean * Math.log(1 - random.nextDouble()));
+                }
+
+                @Override
+                public double getMean() {
+                    return mean;
+                }
+            };
+        }
+    }
+}
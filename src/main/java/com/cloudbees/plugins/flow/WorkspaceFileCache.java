@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the content of the scripts flows read from their workspace, so that a file that didn't change since the last run
+ * costs a digest computed where the file is, rather than a transfer of the whole file from the agent.
+ * <p>
+ * As the text read is the same, the class compiled for it by {@link FlowScriptCache} is reused as well. When a file
+ * changed, the class compiled for its previous content is evicted. Files are keyed by node and path, and the least
+ * recently used ones are dropped once the cache holds more than {@link FlowScriptCache#MAX_SIZE} of them.
+ */
+public final class WorkspaceFileCache {
+
+    private static final WorkspaceFileCache INSTANCE = new WorkspaceFileCache();
+
+    private final Map<String, Entry> files = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > FlowScriptCache.MAX_SIZE;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public static WorkspaceFileCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reads the file, transferring it only if its digest changed since it was last read.
+     */
+    public String read(FilePath file) throws IOException, InterruptedException {
+        String key = keyOf(file);
+        String digest = file.digest();
+        Entry cached;
+        synchronized (files) {
+            cached = files.get(key);
+        }
+        if (cached != null && cached.digest.equals(digest)) {
+            hits.incrementAndGet();
+            return cached.content;
+        }
+        misses.incrementAndGet();
+        String content = file.readToString();
+        synchronized (files) {
+            files.put(key, new Entry(digest, content));
+        }
+        if (cached != null && !cached.content.equals(content)) {
+            FlowScriptCache.get().invalidate(cached.content);
+        }
+        return content;
+    }
+
+    public void clear() {
+        synchronized (files) {
+            files.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String keyOf(FilePath file) {
+        Computer computer = file.toComputer();
+        return (computer != null ? computer.getName() : "") + ':' + file.getRemote();
+    }
+
+    private static final class Entry {
+        private final String digest;
+        private final String content;
+
+        Entry(String digest, String content) {
+            this.digest = digest;
+            this.content = content;
+        }
+    }
+}
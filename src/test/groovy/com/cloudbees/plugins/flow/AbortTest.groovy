@@ -222,4 +222,69 @@ class AbortTest extends DSLTestCase {
 		jenkinsRule.assertBuildStatusSuccess(flows[0].flow.get())
 		jenkinsRule.assertBuildStatusSuccess(flows[2].flow.get())
 	}
+
+	/**
+	 * Tests that when a Flow is aborted all the jobs it queued in parallel are removed from the queue.
+	 */
+	@Test
+	public void testThatAbortCancelsAllQueuedJobs_ParallelBlock() {
+		// no executor, so the jobs stay in the queue
+		jenkinsRule.jenkins.numExecutors = 0
+		def jobs = createJobs((1..10).collect { "job$it" })
+
+		def future = schedule("""
+			parallel(
+				${(1..10).collect { "{ build(\"job$it\") }" }.join(",\n")}
+			)
+		""")
+
+		def flow = future.waitForStart()
+		def queue = Jenkins.instance.queue
+		while (queue.items.length < 10) {
+			Thread.sleep(10L)
+		}
+
+		flow.oneOffExecutor.interrupt(Result.ABORTED)
+		future.get();
+
+		jenkinsRule.assertBuildStatus(Result.ABORTED, flow)
+		assert queue.items.length == 0
+		jobs.each { assertDidNotRun(it) }
+	}
+
+	/**
+	 * Tests that an aborted Flow does not wait forever for a downstream build that doesn't abort.
+	 */
+	@Test
+	public void testThatAbortGivesUpOnStragglers() {
+		File f1 = new File("target", "${name.getMethodName()}_job1.lock")
+		f1.mkdirs()
+		f1.createNewFile()
+
+		def job1 = createBlockingJob("job1", f1, true)
+
+		long timeout = FlowDSL.ABORT_TIMEOUT
+		FlowDSL.ABORT_TIMEOUT = 1
+		try {
+			def future = schedule("""
+			                     build("job1")
+			                     """)
+
+			def flow = future.waitForStart()
+			while (!job1.building) {
+				Thread.sleep(10L)
+			}
+
+			flow.oneOffExecutor.interrupt(Result.ABORTED)
+			future.get();
+
+			jenkinsRule.assertBuildStatus(Result.ABORTED, flow)
+			assert job1.lastBuild.building
+			assert flow.log.contains("job1 #1 is still running")
+		} finally {
+			FlowDSL.ABORT_TIMEOUT = timeout
+			f1.delete()
+		}
+		jenkinsRule.waitUntilNoActivityUpTo(25000)
+	}
 }
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import static hudson.model.Result.SUCCESS
+import static hudson.model.Result.FAILURE
+import org.junit.Test
+
+class AsyncTest extends DSLTestCase {
+
+    @Test
+    public void testJoin() {
+        def jobs = createJobs(["job1", "job2", "job3"])
+        def job4 = createJob("job4")
+        def flow = run("""
+            def handles = ["job1", "job2", "job3"].collect { buildAsync(it) }
+            join(handles)
+            build("job4", r1: handles[0].result.name)
+        """)
+        assertAllSuccess(jobs)
+        assertSuccess(job4)
+        assertHasParameter(job4, "r1", "SUCCESS")
+        assert SUCCESS == flow.result
+
+        def graph = flow.jobsGraph
+        def job4Vertex = graph.vertexSet().find { it.name == "job4" }
+        assert 3 == graph.incomingEdgesOf(job4Vertex).size()
+        assert 3 == graph.outgoingEdgesOf(flow.startJob).size()
+    }
+
+    @Test
+    public void testJoinAnyAndOnComplete() {
+        def jobs = createJobs(["job1", "job2", "after1"])
+        def flow = run("""
+            def h1 = buildAsync("job1")
+            def h2 = buildAsync("job2")
+            onComplete(h1) { b -> build("after1", upstreamResult: b.result.name) }
+            def first = joinAny([h1, h2])
+            def second = joinAny([h1, h2])
+            assert first != second
+            assert null == joinAny([h1, h2])
+        """)
+        assertAllSuccess(jobs)
+        assertHasParameter(jobs[2], "upstreamResult", "SUCCESS")
+        assert SUCCESS == flow.result
+
+        def graph = flow.jobsGraph
+        def after1 = graph.vertexSet().find { it.name == "after1" }
+        assert "job1" == graph.incomingEdgesOf(after1).iterator().next().source.name
+    }
+
+    @Test
+    public void testImplicitJoin() {
+        createJob("job1")
+        def willFail = createFailJob("willFail")
+        def flow = run("""
+            buildAsync("job1")
+            buildAsync("willFail")
+        """)
+        assertFailure(willFail)
+        assert FAILURE == flow.result
+    }
+
+    @Test
+    public void testFailedJoinStopsFlow() {
+        createFailJob("willFail")
+        def notRan = createJob("notRan")
+        def flow = run("""
+            join(buildAsync("willFail"))
+            build("notRan")
+        """)
+        assertDidNotRun(notRan)
+        assert FAILURE == flow.result
+    }
+
+    @Test
+    public void testOnCompleteKeepsBranchState() {
+        def jobs = createJobs(["job1", "job2", "after1"])
+        def flow = run("""
+            parallel(failFast: true,
+                {
+                    def registering = flowRun.state
+                    def h1 = buildAsync("job1")
+                    onComplete(h1) { b ->
+                        // still cancelled along with its branch
+                        assert registering.cancellation != null
+                        assert registering.cancellation.is(flowRun.state.cancellation)
+                        assert registering.criticalPath == flowRun.state.criticalPath
+                        build("after1")
+                    }
+                    join(h1)
+                },
+                { build("job2") }
+            )
+        """)
+        assertAllSuccess(jobs)
+        assert SUCCESS == flow.result
+    }
+}
@@ -39,7 +39,10 @@ import hudson.model.StringParameterValue
 import hudson.model.ParametersDefinitionProperty
 import hudson.model.ParameterDefinition
 import hudson.model.StringParameterDefinition
+import hudson.model.BooleanParameterDefinition
+import hudson.model.BooleanParameterValue
 import hudson.model.FreeStyleProject
+import hudson.util.FormValidation
 
 import static hudson.model.Result.UNSTABLE
 import org.junit.Test
@@ -55,6 +58,45 @@ class BuildTest extends DSLTestCase {
         jenkinsRule.assertLogContains("Item unknown not found (or isn't a job).", flow)
     }
 
+    @Test
+    public void testUnknownJobFailsBeforeAnyBuild() {
+        def job1 = createJob("job1")
+        def flow = run("""
+            build("job1")
+            parallel(
+                { build("job1") },
+                { build("unknwon") }
+            )
+        """)
+        assert FAILURE == flow.result
+        jenkinsRule.assertLogContains("Item unknwon not found (or isn't a job). (line 5)", flow)
+        assertDidNotRun(job1)
+    }
+
+    @Test
+    public void testUnknownJobInConditionalBranch() {
+        def job1 = createJob("job1")
+        def flow = run("""
+            build("job1")
+            if (build.number < 0) {
+                build("unknown")
+            }
+        """)
+        assert SUCCESS == flow.result
+        assertSuccess(job1)
+    }
+
+    @Test
+    public void testCheckDsl() {
+        createJob("job1")
+        def descriptor = jenkinsRule.jenkins.getDescriptorByType(BuildFlow.BuildFlowDescriptor)
+        assert FormValidation.Kind.OK == descriptor.doCheckDsl('build("job1")', jenkinsRule.jenkins).kind
+        def unknown = descriptor.doCheckDsl('build("job1")\nbuild("unknown")', jenkinsRule.jenkins)
+        assert FormValidation.Kind.WARNING == unknown.kind
+        assert unknown.message.contains("unknown (line 2)")
+        assert FormValidation.Kind.ERROR == descriptor.doCheckDsl('build("job1"', jenkinsRule.jenkins).kind
+    }
+
     @Test
     public void testDisabledJob() {
         def disabledJob = createJob("disabledJob")
@@ -195,6 +237,43 @@ class BuildTest extends DSLTestCase {
         assert SUCCESS == flow.result
     }
 
+    @Test
+    public void testParameterDefinitionsChanged() {
+        FreeStyleProject job1 = createJob("job1")
+        job1.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("param1", "0"), new BooleanParameterDefinition("param2", false, "")))
+
+        def dsl = """
+            build("job1", param2:"true")
+        """
+        run(dsl)
+        def build = assertSuccess(job1)
+        assertHasParameter(build, "param1", "0")
+        assert build.getAction(ParametersAction).getParameter("param2") instanceof BooleanParameterValue
+
+        job1.removeProperty(ParametersDefinitionProperty)
+        job1.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("param1", "1")))
+        run(dsl)
+        build = job1.lastBuild
+        assertHasParameter(build, "param1", "1")
+        assertHasParameter(build, "param2", "true")
+        assert build.getAction(ParametersAction).getParameter("param2") instanceof StringParameterValue
+    }
+
+    @Test
+    public void testDefaultValuesNotShared() {
+        FreeStyleProject job1 = createJob("job1")
+        job1.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("param1", "0")))
+        run("""
+            build("job1")
+            build("job1")
+        """)
+        def values = job1.builds*.getAction(ParametersAction)*.getParameter("param1")
+        assert 2 == values.size()
+        assert values.every { it.value == "0" }
+        // values belong to their build, changing one must not change the other
+        assert !values[0].is(values[1])
+    }
+
     @Issue("JENKINS-17199")
     @Test
     public void testImportStatement() {
@@ -220,4 +299,34 @@ class BuildTest extends DSLTestCase {
         assert SUCCESS == build.result
         assert build.log.contains("BuildFlow parallel statement thread for project_name")
     }
+
+    @Test
+    public void testReleaseWorkspaceWhileWaiting() {
+        File f = new File("target", "${name.methodName}.lock")
+        f.parentFile.mkdirs()
+        f.createNewFile()
+        def job1 = createBlockingJob("job1", f)
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name.methodName)
+        flow.dsl = """build("job1")"""
+        flow.buildNeedsWorkspace = true
+        flow.releaseWorkspace = true
+        flow.onCreatedFromScratch()
+
+        def future = flow.scheduleBuild2(0)
+        def run = future.waitForStart()
+        while (!job1.building) {
+            Thread.sleep(10L)
+        }
+        // another build would get the workspace of the flow rather than one of its own
+        def lease = Jenkins.instance.toComputer().workspaceList.allocate(run.workspace)
+        try {
+            assert run.workspace == lease.path
+        } finally {
+            lease.release()
+        }
+        f.delete()
+
+        jenkinsRule.assertBuildStatus(SUCCESS, future.get())
+        jenkinsRule.assertLogContains("releasing the workspace while the flow runs", run)
+    }
 }
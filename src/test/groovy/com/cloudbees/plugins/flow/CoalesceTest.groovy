@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import jenkins.model.Jenkins
+import org.junit.Test
+
+import static hudson.model.Result.FAILURE
+import static hudson.model.Result.SUCCESS
+
+class CoalesceTest extends DSLTestCase {
+
+    @Test
+    public void testParallelBranchesShareQueuedBuild() {
+        def lib = createJob("deploy-lib")
+        // keep the first item in the queue while the second branch schedules the same build
+        lib.quietPeriod = 5
+        def flow = createFlow(name.methodName, """
+            parallel(
+                { build("deploy-lib", version: "1.2") },
+                { build("deploy-lib", version: "1.2") }
+            )
+        """)
+        def run = flow.scheduleBuild2(0).get()
+
+        jenkinsRule.assertBuildStatus(SUCCESS, run)
+        jenkinsRule.assertLogContains("deploy-lib coalesced with an identical build", run)
+        assert 1 == lib.builds.size()
+        assertHasParameter(lib, "version", "1.2")
+        def invocations = run.jobsGraph.vertexSet().findAll { it.name == "deploy-lib" }
+        assert 2 == invocations.size()
+        assert invocations.every { it.buildNumber == 1 }
+        assert 1 == invocations.count { it.coalesced }
+    }
+
+    @Test
+    public void testConcurrentFlowsShareRunningBuild() {
+        File f = new File("target", "${name.methodName}.lock")
+        f.mkdirs()
+        f.createNewFile()
+        def lib = createBlockingJob("deploy-lib", f)
+        def dsl = """build("deploy-lib", version: "1.2")"""
+
+        def first = createFlow("first", dsl).scheduleBuild2(0)
+        while (!lib.building) {
+            Thread.sleep(10L)
+        }
+        def second = createFlow("second", dsl).scheduleBuild2(0)
+        def secondRun = second.waitForStart()
+        while (!secondRun.jobsGraph.vertexSet().any { it.name == "deploy-lib" && it.started }) {
+            Thread.sleep(10L)
+        }
+        f.delete()
+
+        jenkinsRule.assertBuildStatus(SUCCESS, first.get())
+        jenkinsRule.assertBuildStatus(SUCCESS, second.get())
+        jenkinsRule.assertLogContains("deploy-lib coalesced with an identical build", secondRun)
+        assert 1 == lib.builds.size()
+    }
+
+    @Test
+    public void testDifferentParametersAreNotCoalesced() {
+        def lib = createJob("deploy-lib")
+        lib.quietPeriod = 2
+        def flow = createFlow(name.methodName, """
+            parallel(
+                { build("deploy-lib", version: "1.2") },
+                { build("deploy-lib", version: "1.3") }
+            )
+        """)
+        def run = flow.scheduleBuild2(0).get()
+
+        jenkinsRule.assertBuildStatus(SUCCESS, run)
+        assert 2 == lib.builds.size()
+    }
+
+    @Test
+    public void testIdenticalBuildFailsWithoutCoalescing() {
+        def lib = createJob("deploy-lib")
+        lib.quietPeriod = 5
+        def flow = createFlow(name.methodName, """
+            parallel(
+                { build("deploy-lib", version: "1.2") },
+                { build("deploy-lib", version: "1.2") }
+            )
+        """)
+        flow.coalesceBuilds = false
+        def run = flow.scheduleBuild2(0).get()
+
+        jenkinsRule.assertBuildStatus(FAILURE, run)
+        jenkinsRule.assertLogContains("Could not schedule job deploy-lib", run)
+    }
+
+    private BuildFlow createFlow(String name, String dsl) {
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name)
+        flow.dsl = dsl
+        flow.coalesceBuilds = true
+        flow.onCreatedFromScratch()
+        return flow
+    }
+}
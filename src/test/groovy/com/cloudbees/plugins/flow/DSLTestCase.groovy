@@ -89,9 +89,9 @@ abstract class DSLTestCase {
         return job
     }
 
-    def createBlockingJob = {String name, File file = BlockingBuilder.DEFAULT_FILE ->
+    def createBlockingJob = {String name, File file = BlockingBuilder.DEFAULT_FILE, boolean ignoreInterrupts = false ->
         def job = createJob(name)
-        job.getBuildersList().add(new BlockingBuilder(file));
+        job.getBuildersList().add(new BlockingBuilder(file, ignoreInterrupts));
         job.onCreatedFromScratch() // need this to updateTransientActions
         return job
     }
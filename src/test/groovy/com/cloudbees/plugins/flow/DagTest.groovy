@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import jenkins.model.Jenkins
+import org.junit.Test
+
+import static hudson.model.Result.FAILURE
+import static hudson.model.Result.SUCCESS
+
+class DagTest extends DSLTestCase {
+
+    @Test
+    public void testDiamond() {
+        def jobs = createJobs(["a", "b", "c", "d", "e"])
+        def flow = run("""
+            def builds = dag {
+                node("a")
+                node("b")
+                node("c")
+                node("d")
+                node("e")
+                edge("a", "b", "c")
+                edge("b", "d")
+                edge("c", "d")
+            }
+            assert ["a", "b", "c", "d", "e"] == builds.keySet() as List
+        """)
+        assertAllSuccess(jobs)
+        assert SUCCESS == flow.result
+
+        def graph = flow.jobsGraph
+        def vertex = { name -> graph.vertexSet().find { it.name == name } }
+        assert [flow.project.fullName] == graph.incomingEdgesOf(vertex("a"))*.source*.name
+        assert [flow.project.fullName] == graph.incomingEdgesOf(vertex("e"))*.source*.name
+        assert ["a"] == graph.incomingEdgesOf(vertex("b"))*.source*.name
+        assert ["b", "c"] == graph.incomingEdgesOf(vertex("d"))*.source*.name.sort()
+    }
+
+    @Test
+    public void testNodeParameters() {
+        def job = createJob("test")
+        def flow = run("""
+            dag {
+                ["core", "web"].each { m ->
+                    node("test-" + m, "test", module: m)
+                }
+                edge("test-core", "test-web")
+            }
+        """)
+        assert SUCCESS == flow.result
+        assert 2 == job.builds.size()
+        assertHasParameter(job.builds[1], "module", "core")
+        assertHasParameter(job.builds[0], "module", "web")
+    }
+
+    @Test
+    public void testCycle() {
+        def a = createJob("a")
+        def flow = run("""
+            dag {
+                node("a")
+                node("b")
+                node("c")
+                edge("a", "b")
+                edge("b", "c")
+                edge("c", "b")
+            }
+        """)
+        assert FAILURE == flow.result
+        jenkinsRule.assertLogContains("these nodes can never run: b, c", flow)
+        assertDidNotRun(a)
+    }
+
+    @Test
+    public void testFailureSkipsDescendants() {
+        createFailJob("a")
+        def b = createJob("b")
+        def c = createJob("c")
+        def flow = run("""
+            dag {
+                node("a")
+                node("b")
+                node("c")
+                edge("a", "b")
+            }
+        """)
+        assert FAILURE == flow.result
+        assertSuccess(c)
+        assertDidNotRun(b)
+        assert flow.jobsGraph.vertexSet().find { it.name == "b" }.cancelled
+    }
+
+    @Test
+    public void testMaxConcurrent() {
+        createJob("job1")
+        def scheduler = new SimulatedFlowScheduler()
+        scheduler.buildTime = SimulatedFlowScheduler.Distribution.uniform(0, 5)
+        try {
+            BuildFlow project = new BuildFlow(Jenkins.instance, name.getMethodName())
+            project.dsl = """
+                dag(maxConcurrent: 3) {
+                    (1..30).each { node("n\$it", "job1") }
+                    (2..30).each { edge("n1", "n\$it") }
+                }
+            """
+            project.scheduler = scheduler
+            project.onCreatedFromScratch()
+            def flow = project.scheduleBuild2(0).get()
+            assert SUCCESS == flow.result
+            assert 30 == scheduler.completedCount
+            assert scheduler.peakInFlight <= 3
+        } finally {
+            scheduler.shutdown()
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import com.cloudbees.plugin.flow.BlockingNotifier
+import jenkins.model.Jenkins
+import org.junit.Test
+
+import static hudson.model.Result.SUCCESS
+
+class FinalizationTest extends DSLTestCase {
+
+    /**
+     * [JENKINS-22960] the next build only starts once the previous one is finalized.
+     */
+    @Test
+    public void testWaitsForFinalization() {
+        File f = lockFile()
+        def job1 = createJob("job1")
+        job1.publishersList.add(new BlockingNotifier(f))
+        def job2 = createJob("job2")
+
+        def future = schedule("""
+            build("job1")
+            build("job2")
+        """)
+        awaitCompleted(job1)
+        Thread.sleep(500L)
+        assertDidNotRun(job2)
+        f.delete()
+
+        def flow = future.get()
+        jenkinsRule.assertBuildStatus(SUCCESS, flow)
+        assertAllSuccess([job1, job2])
+    }
+
+    @Test
+    public void testContinueOnCompletion() {
+        File f = lockFile()
+        def job1 = createJob("job1")
+        job1.publishersList.add(new BlockingNotifier(f))
+        def job2 = createJob("job2")
+
+        def future = schedule("""
+            build("job1", continueOnCompletion: true)
+            build("job2")
+        """)
+        awaitCompleted(job2)
+        // job1 is still being finalized, so the flow isn't done
+        assert job1.lastBuild.logUpdated
+        Thread.sleep(500L)
+        assert !future.isDone()
+        f.delete()
+
+        def flow = future.get()
+        jenkinsRule.assertBuildStatus(SUCCESS, flow)
+        assert !job1.lastBuild.logUpdated
+        jenkinsRule.assertLogContains("finalizing in the background", flow)
+        assertAllSuccess([job1, job2])
+    }
+
+    @Test
+    public void testContinueOnCompletionForTheWholeFlow() {
+        File f = lockFile()
+        def job1 = createJob("job1")
+        job1.publishersList.add(new BlockingNotifier(f))
+        def job2 = createJob("job2")
+
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name.methodName)
+        flow.dsl = """
+            build("job1")
+            build("job2")
+            build("job1", param1: "a", continueOnCompletion: false)
+        """
+        flow.continueOnCompletion = true
+        flow.onCreatedFromScratch()
+        def future = flow.scheduleBuild2(0)
+        awaitCompleted(job2)
+        assert job1.lastBuild.logUpdated
+        f.delete()
+
+        def run = future.get()
+        jenkinsRule.assertBuildStatus(SUCCESS, run)
+        assert 2 == job1.builds.size()
+        assert !job1.lastBuild.logUpdated
+    }
+
+    private File lockFile() {
+        File f = new File("target", "${name.methodName}.lock")
+        f.parentFile.mkdirs()
+        f.createNewFile()
+        return f
+    }
+
+    private static void awaitCompleted(job) {
+        while (job.lastBuild == null || job.lastBuild.building) {
+            Thread.sleep(10L)
+        }
+    }
+}
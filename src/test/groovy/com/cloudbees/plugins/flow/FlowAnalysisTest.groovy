@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import org.junit.Test
+
+class FlowAnalysisTest {
+
+    @Test
+    public void testReferences() {
+        def analysis = FlowAnalysis.analyze("""
+            build("job1")
+            build("job2", param1: "foo")
+            build(param1: "foo", "job3")
+            build("job-\${params.name}")
+            def b = buildAsync("job4")
+            if (b) {
+                build("job5")
+            }
+            ["a", "b"].each { build("job6") }
+            guard {
+                build("job7")
+            } rescue {
+                build("job8")
+            }
+        """)
+        def refs = analysis.references
+        assert ["job1", "job2", "job3", "job4", "job5", "job6", "job7", "job8"] == refs*.name
+        assert ["job5", "job6"] == refs.findAll { it.conditional }*.name
+        assert 2 == refs[0].line
+    }
+
+    @Test
+    public void testPredictedGraph() {
+        def analysis = FlowAnalysis.analyze("""
+            build("a")
+            parallel(
+                { build("b") },
+                {
+                    build("c")
+                    build("d")
+                }
+            )
+            build("e")
+        """)
+        def graph = analysis.predictedGraph
+        def vertex = { name -> graph.vertexSet().find { it.name == name } }
+        def sources = { name -> graph.incomingEdgesOf(vertex(name)).collect { graph.getEdgeSource(it).name }.sort() }
+        assert 5 == graph.vertexSet().size()
+        assert [] == sources("a")
+        assert ["a"] == sources("b")
+        assert ["a"] == sources("c")
+        assert ["c"] == sources("d")
+        assert ["b", "d"] == sources("e")
+    }
+
+    @Test(expected = org.codehaus.groovy.control.MultipleCompilationErrorsException)
+    public void testSyntaxError() {
+        FlowAnalysis.analyze('build("job1"')
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Storage and concurrent registration of the graph of generated flows, which can trigger tens of thousands
+ * of builds. Their footprint and throughput are measured by FlowGraphBenchmark, with the JMH benchmarks.
+ */
+class FlowGraphTest {
+
+    private static final int BUILDS_PER_BRANCH = 100
+
+    @Test
+    public void testViewMatchesStore() {
+        FlowGraph graph = chain(100)
+        def view = graph.asDirectedGraph()
+        assert 100 == view.vertexSet().size()
+        assert 99 == view.edgeSet().size()
+        assert graph.getVertex(50) == view.getEdgeSource(view.incomingEdgesOf(graph.getVertex(51)).iterator().next())
+        // each call copies the graph as it is then
+        JobInvocation extra = invocation(101)
+        graph.addVertex(extra)
+        graph.addEdge(graph.getVertex(100), extra)
+        assert 101 == graph.asDirectedGraph().vertexSet().size()
+        assert 99 == view.edgeSet().size()
+        assert !view.is(graph.asDirectedGraph())
+    }
+
+    @Test
+    public void testStorage() {
+        [1000, 10000, 100000].each { int size ->
+            FlowGraph graph = chain(size)
+            assert size == graph.vertexCount
+            assert size - 1 == graph.edgeCount
+            // vertices and edges are stored in fixed size chunks, nothing is allocated per edge
+            int vertexChunks = size.intdiv(FlowGraph.CHUNK_SIZE) + 1
+            int edgeChunks = (size - 1 + FlowGraph.CHUNK_SIZE - 1).intdiv(FlowGraph.CHUNK_SIZE)
+            assert vertexChunks + edgeChunks == graph.chunkCount
+        }
+    }
+
+    /**
+     * Registration of the builds of concurrent branches, each one chaining {@link #BUILDS_PER_BRANCH} builds
+     * after a common upstream, as <code>build()</code> does in <code>parallel</code>.
+     */
+    @Test
+    public void testConcurrentRegistration() {
+        [10, 100, 1000].each { int branches ->
+            FlowGraph graph = new FlowGraph()
+            AtomicInteger uids = new AtomicInteger(1)
+            JobInvocation upstream = new JobInvocation(null, uids.getAndIncrement(), "job", 1, true, true, true)
+            graph.addVertex(upstream)
+
+            CountDownLatch go = new CountDownLatch(1)
+            List<Thread> threads = (1..branches).collect {
+                Thread.start {
+                    go.await()
+                    JobInvocation previous = upstream
+                    for (int i = 0; i < BUILDS_PER_BRANCH; i++) {
+                        JobInvocation job = new JobInvocation(null, uids.getAndIncrement(), "job", i, true, true, true)
+                        graph.addVertex(job)
+                        graph.addEdge(previous, job)
+                        previous = job
+                    }
+                }
+            }
+            go.countDown()
+            threads*.join()
+
+            int builds = branches * BUILDS_PER_BRANCH
+            assert builds + 1 == graph.vertexCount
+            assert builds == graph.edgeCount
+            def view = graph.asDirectedGraph()
+            assert builds == view.edgeSet().size()
+            assert branches == view.outgoingEdgesOf(upstream).size()
+        }
+    }
+
+    /**
+     * Completed invocations, each one depending on the previous one, all for the same job as generated flows do.
+     */
+    private static FlowGraph chain(int size) {
+        FlowGraph graph = new FlowGraph()
+        JobInvocation previous = null
+        for (int uid = 1; uid <= size; uid++) {
+            JobInvocation job = invocation(uid)
+            graph.addVertex(job)
+            if (previous != null) {
+                graph.addEdge(previous, job)
+            }
+            previous = job
+        }
+        return graph
+    }
+
+    private static JobInvocation invocation(int uid) {
+        return new JobInvocation(null, uid, "job", uid, true, true, true)
+    }
+}
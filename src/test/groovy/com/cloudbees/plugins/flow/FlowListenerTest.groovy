@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.model.Run
+import org.junit.After
+import org.junit.Test
+
+import static org.mockito.Mockito.*
+
+/**
+ * The listener dispatch, which runs for every build of the instance. Its cost is measured by
+ * FlowListenerBenchmark, with the JMH benchmarks.
+ */
+class FlowListenerTest {
+
+    private final FlowListener listener = new FlowListener()
+
+    private final List<Long> registered = []
+
+    @After
+    public void unregister() {
+        registered.each { FlowListener.INVOCATIONS.remove(it) }
+    }
+
+    @Test
+    public void testDispatchesToRegisteredInvocation() {
+        JobInvocation job = mock(JobInvocation)
+        Run run = mockRun(Long.MAX_VALUE - 1)
+        register(Long.MAX_VALUE - 1, job)
+
+        listener.onStarted(run, null)
+        listener.onCompleted(run, null)
+        listener.onFinalized(run)
+
+        verify(job).buildStarted(run)
+        verify(job).buildCompleted()
+        verify(job).buildFinalized()
+        assert null == FlowListener.lookup(Long.MAX_VALUE - 1)
+    }
+
+    @Test
+    public void testUnrelatedBuildsAreNotInspected() {
+        Run run = mockRun(42)
+        listener.onStarted(run, null)
+        listener.onCompleted(run, null)
+        listener.onFinalized(run)
+        verify(run, never()).getCauses()
+    }
+
+    @Test
+    public void testDispatchesByQueueId() {
+        // other downstream builds in flight, the event must only reach the invocation of its own queue item
+        List<JobInvocation> jobs = (1..100).collect { mock(JobInvocation) }
+        jobs.eachWithIndex { job, i -> register(Long.MAX_VALUE - 1000 + i, job) }
+        Run run = mockRun(Long.MAX_VALUE - 1000 + 42)
+
+        listener.onStarted(run, null)
+        listener.onCompleted(run, null)
+        listener.onFinalized(run)
+
+        verify(jobs[42]).buildStarted(run)
+        verify(jobs[42]).buildCompleted()
+        verify(jobs[42]).buildFinalized()
+        jobs.eachWithIndex { job, i -> if (i != 42) verifyZeroInteractions(job) }
+        assert null == FlowListener.lookup(Long.MAX_VALUE - 1000 + 42)
+        assert jobs[41].is(FlowListener.lookup(Long.MAX_VALUE - 1000 + 41))
+    }
+
+    private void register(long id, JobInvocation job) {
+        FlowListener.register(id, job)
+        registered << id
+    }
+
+    private static Run mockRun(long queueId) {
+        Run run = mock(Run)
+        when(run.getQueueId()).thenReturn(queueId)
+        return run
+    }
+}
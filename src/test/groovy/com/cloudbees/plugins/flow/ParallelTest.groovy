@@ -27,7 +27,11 @@ package com.cloudbees.plugins.flow
 import static hudson.model.Result.SUCCESS
 import hudson.model.Result
 import static hudson.model.Result.FAILURE
+import static hudson.model.Result.ABORTED
+import static hudson.model.Result.UNSTABLE
+import jenkins.model.Jenkins
 import org.junit.Test
+import org.jvnet.hudson.test.SleepBuilder
 
 class ParallelTest extends DSLTestCase {
 
@@ -134,4 +138,229 @@ class ParallelTest extends DSLTestCase {
         println flow.jobsGraph.edgeSet()
     }
 
+    @Test
+    public void testParallelSaturated() {
+        def jobs = createJobs(["job1", "job2", "job3", "job4"])
+        def max = ParallelExecutor.MAX_BRANCHES_PER_FLOW
+        def ranInCaller = ParallelExecutor.get().ranInCallerCount
+        ParallelExecutor.MAX_BRANCHES_PER_FLOW = 1
+        try {
+            def flow = run("""
+                parallel(
+                    { build("job1") },
+                    { build("job2") },
+                    { build("job3") }
+                )
+                build("job4")
+            """)
+            assertAllSuccess(jobs)
+            assert SUCCESS == flow.result
+            // the first branch holds the only pooled slot of the flow, the others run in the flow thread
+            assert ParallelExecutor.get().ranInCallerCount >= ranInCaller + 1
+            def log = flow.log
+            assert log.contains("1 parallel branches already running")
+            assert log.indexOf("parallel branches already running") == log.lastIndexOf("parallel branches already running")
+            assert 3 == flow.jobsGraph.incomingEdgesOf(flow.jobsGraph.vertexSet().find { it.name == "job4" }).size()
+        } finally {
+            ParallelExecutor.MAX_BRANCHES_PER_FLOW = max
+        }
+    }
+
+    @Test
+    public void testWideParallelJoined() {
+        def jobs = createJobs((1..7).collect { "job$it" })
+        int threshold = FlowRun.JOIN_THRESHOLD
+        FlowRun.JOIN_THRESHOLD = 3
+        try {
+            def flow = run("""
+                parallel(
+                    { build("job1") },
+                    { build("job2") },
+                    { build("job3") },
+                    { build("job4") },
+                )
+                parallel(
+                    { build("job5") },
+                    { build("job6") },
+                    { build("job7") },
+                )
+            """)
+            assertAllSuccess(jobs)
+            assert SUCCESS == flow.result
+            def graph = flow.jobsGraph
+            // start, 7 builds and the join of the first parallel, whose branches are not wider than the threshold
+            assert 9 == graph.vertexSet().size()
+            // 4 + 4 + 3 edges rather than 4 + 4 * 3
+            assert 11 == graph.edgeSet().size()
+            def job5 = graph.vertexSet().find { it.name == "job5" }
+            assert graph.incomingEdgesOf(job5)*.source.every { it instanceof JobInvocation.Join }
+        } finally {
+            FlowRun.JOIN_THRESHOLD = threshold
+        }
+    }
+
+    @Test
+    public void testFailFast() {
+        File f1 = new File("target", "${name.getMethodName()}_job1.lock")
+        f1.mkdirs()
+        f1.createNewFile()
+        try {
+            def job1 = createBlockingJob("job1", f1)
+            def job2 = createJob("job2")
+            def job3 = createJob("job3")
+            createFailJob("willFail")
+            def flow = run("""
+                parallel(failFast: true,
+                    {
+                        build("job1")
+                        build("job2")
+                    },
+                    {
+                        build("job3")
+                        build("willFail")
+                    }
+                )
+            """)
+            assertSuccess(job3)
+            // the aborted branch doesn't count
+            assert FAILURE == flow.result
+            // job1 was either removed from the queue, or aborted
+            assert job1.lastBuild == null || ABORTED == job1.lastBuild.result
+            assertDidNotRun(job2)
+            def cancelled = flow.jobsGraph.vertexSet().findAll { it.cancelled }
+            assert ["job1"] == cancelled*.name
+        } finally {
+            f1.delete()
+        }
+    }
+
+    @Test
+    public void testFailFastThreshold() {
+        def jobs = createJobs(["job1", "job2"])
+        createUnstableJob("unstable")
+        def flow = run("""
+            parallel(failFast: FAILURE,
+                a: { build("unstable") },
+                b: {
+                    build("job1")
+                    build("job2")
+                }
+            )
+        """)
+        assertAllSuccess(jobs)
+        assert UNSTABLE == flow.result
+        assert flow.jobsGraph.vertexSet().every { !it.cancelled }
+    }
+
+    @Test
+    public void testParallelEach() {
+        def jobs = createJobs((1..6).collect { "job$it" })
+        def flow = run("""
+            def names = (1..6).collect { "job\$it" }
+            def states = parallelEach(names, 2) { name -> build(name) }
+            assert names == states*.lastBuild*.name
+
+            def byKey = parallelEach([a: "job1", b: "job2"], 1) { key, name -> build(name) }
+            assert ["a", "b"] == byKey.keySet() as List
+            assert "job2" == byKey.b.lastBuild.name
+        """)
+        assertAllSuccess(jobs)
+        assert SUCCESS == flow.result
+
+        // no more than 2 builds at the same time
+        def builds = jobs*.builds.flatten()
+        builds.each { b ->
+            def running = builds.findAll { it.startTimeInMillis <= b.startTimeInMillis && b.startTimeInMillis < it.startTimeInMillis + it.duration }
+            assert running.size() <= 2
+        }
+    }
+
+    @Test
+    public void testMaxConcurrentNamedBranches() {
+        def jobs = createJobs(["job1", "job2", "job3"])
+        def flow = run("""
+            def states = parallel(maxConcurrent: 1,
+                first:  { build("job1") },
+                second: { build("job2") },
+                third:  { build("job3") }
+            )
+            assert ["first", "second", "third"] == states.keySet() as List
+        """)
+        assertAllSuccess(jobs)
+        assert SUCCESS == flow.result
+        def builds = jobs*.lastBuild
+        // one after the other
+        assert builds[0].startTimeInMillis + builds[0].duration <= builds[1].startTimeInMillis
+        assert builds[1].startTimeInMillis + builds[1].duration <= builds[2].startTimeInMillis
+    }
+
+    @Test
+    public void testBranchesBeyondPoolDontPinThreads() {
+        File f1 = new File("target", "${name.getMethodName()}_job.lock")
+        f1.mkdirs()
+        f1.createNewFile()
+        def max = ParallelExecutor.MAX_BRANCHES_PER_FLOW
+        ParallelExecutor.MAX_BRANCHES_PER_FLOW = 2
+        Jenkins.instance.numExecutors = 8
+        try {
+            def jobs = (1..4).collect { createBlockingJob("job" + it, f1) }
+            def future = schedule("""
+                parallel(
+                    { build("job1") },
+                    { build("job2") },
+                    { build("job3") },
+                    { build("job4") }
+                )
+            """)
+            future.waitForStart()
+            // two branches on pooled threads, the third one in the flow thread, the last one waits for a slot
+            def prefix = "BuildFlow parallel statement thread for " + name.getMethodName()
+            def branchThreads = { Thread.allStackTraces.keySet().findAll { it.name == prefix } }
+            long deadline = System.currentTimeMillis() + 10000L
+            while (System.currentTimeMillis() < deadline
+                    && (jobs[0..2].any { it.lastBuild == null }
+                        || branchThreads().any { it.state != Thread.State.WAITING })) {
+                Thread.sleep(10L)
+            }
+            assert jobs[0..2].every { it.lastBuild != null && it.lastBuild.building }
+            assert jobs[3].lastBuild == null
+            def threads = branchThreads()
+            assert 3 == threads.size()
+            // parked until signalled, not waking up on a timeout
+            assert threads.every { it.state == Thread.State.WAITING }
+            f1.delete()
+            def flow = future.get()
+            assertAllSuccess(jobs)
+            assert SUCCESS == flow.result
+        } finally {
+            ParallelExecutor.MAX_BRANCHES_PER_FLOW = max
+            f1.delete()
+        }
+    }
+
+    @Test
+    public void testCriticalPathHintOptIn() {
+        def job1 = createJob("job1")
+        job1.buildersList.add(new SleepBuilder(100))
+        def job2 = createJob("job2")
+        // so that job1 has an estimated duration
+        jenkinsRule.buildAndAssertSuccess(job1)
+        def dsl = """parallelEach(order: 'longestFirst', ["job1", "job2"], 2) { name -> build(name) }"""
+        boolean enabled = CriticalPathQueueSorter.ENABLED
+        try {
+            CriticalPathQueueSorter.ENABLED = false
+            assert SUCCESS == run(dsl).result
+            assert !(Jenkins.instance.queue.sorter instanceof CriticalPathQueueSorter)
+
+            CriticalPathQueueSorter.ENABLED = true
+            assert SUCCESS == run(dsl).result
+            assert Jenkins.instance.queue.sorter instanceof CriticalPathQueueSorter
+            // the hint only matters in the queue, it is not kept with the build
+            assert null == job1.lastBuild.getAction(CriticalPathAction)
+            assert null == job2.lastBuild.getAction(CriticalPathAction)
+        } finally {
+            CriticalPathQueueSorter.ENABLED = enabled
+        }
+    }
+
 }
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.XmlFile
+import hudson.diagnosis.OldDataMonitor
+import hudson.model.Run
+import jenkins.model.Jenkins
+import org.jgrapht.graph.SimpleDirectedGraph
+import org.junit.Test
+
+import static hudson.model.Result.SUCCESS
+
+class PersistenceTest extends DSLTestCase {
+
+    @Test
+    public void testJobsGraphStoredInItsOwnFile() {
+        createJobs(["job1", "job2", "job3", "job 4"])
+        def flow = run("""
+            build("job1")
+            parallel(
+                { build("job2") },
+                { build("job3") },
+            )
+            build("job 4")
+        """)
+        assert SUCCESS == flow.result
+        assert new File(flow.rootDir, JobsGraphFile.FILE_NAME).exists()
+        assert !new File(flow.rootDir, "build.xml").text.contains("jobsGraph")
+
+        Jenkins.instance.reload()
+
+        FlowRun reloaded = Jenkins.instance.getItemByFullName(name.getMethodName(), BuildFlow).getBuildByNumber(1)
+        def graph = reloaded.jobsGraph
+        assert 5 == graph.vertexSet().size()
+        assert 5 == graph.edgeSet().size()
+        assert graph.vertexSet().contains(reloaded.startJob)
+        def job4 = graph.vertexSet().find { it.name == "job 4" }
+        assert job4.isFinalized()
+        assert 1 == job4.build.number
+        assert ["job2", "job3"] as Set == graph.incomingEdgesOf(job4)*.source*.name as Set
+    }
+
+    @Test
+    public void testLegacyJobsGraphMigrated() {
+        createJobs(["job1", "job2", "job3"])
+        def flow = run("""
+            build("job1")
+            parallel(
+                { build("job2") },
+                { build("job3") },
+            )
+        """)
+        assert SUCCESS == flow.result
+
+        // the record as versions up to 0.20 wrote it, with the graph in build.xml
+        def legacy = new SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge>(FlowRun.JobEdge)
+        def graph = flow.jobsGraph
+        graph.vertexSet().each { legacy.addVertex(it) }
+        graph.edgeSet().each { legacy.addEdge(it.source, it.target, new FlowRun.JobEdge(it.source, it.target)) }
+        flow.@jobsGraph = legacy
+        def buildXml = new File(flow.rootDir, "build.xml")
+        new XmlFile(Run.XSTREAM, buildXml).write(flow)
+        def graphFile = new File(flow.rootDir, JobsGraphFile.FILE_NAME)
+        assert graphFile.delete()
+        assert buildXml.text.contains("<jobsGraph")
+
+        Jenkins.instance.reload()
+
+        FlowRun reloaded = Jenkins.instance.getItemByFullName(name.getMethodName(), BuildFlow).getBuildByNumber(1)
+        assert graphFile.exists()
+        def migrated = reloaded.jobsGraph
+        assert 4 == migrated.vertexSet().size()
+        assert 4 == migrated.edgeSet().size()
+        def job1 = migrated.vertexSet().find { it.name == "job1" }
+        assert ["job2", "job3"] as Set == migrated.outgoingEdgesOf(job1)*.target*.name as Set
+        assert OldDataMonitor.get(Jenkins.instance).data.keySet().any {
+            it instanceof FlowRun && it.parent.fullName == name.getMethodName() && it.number == 1
+        }
+
+        // saving the record drops the old graph from build.xml
+        reloaded.save()
+        assert !buildXml.text.contains("jobsGraph")
+        Jenkins.instance.reload()
+        reloaded = Jenkins.instance.getItemByFullName(name.getMethodName(), BuildFlow).getBuildByNumber(1)
+        assert 4 == reloaded.jobsGraph.vertexSet().size()
+    }
+
+    @Test
+    public void testJoinRestored() {
+        createJobs((1..5).collect { "job$it" })
+        int threshold = FlowRun.JOIN_THRESHOLD
+        FlowRun.JOIN_THRESHOLD = 3
+        try {
+            def flow = run("""
+                parallel(
+                    { build("job1") },
+                    { build("job2") },
+                    { build("job3") },
+                    { build("job4") },
+                )
+                build("job5")
+            """)
+            assert SUCCESS == flow.result
+        } finally {
+            FlowRun.JOIN_THRESHOLD = threshold
+        }
+
+        Jenkins.instance.reload()
+
+        FlowRun reloaded = Jenkins.instance.getItemByFullName(name.getMethodName(), BuildFlow).getBuildByNumber(1)
+        def graph = reloaded.jobsGraph
+        def joins = graph.vertexSet().findAll { it instanceof JobInvocation.Join }
+        assert 1 == joins.size()
+        def join = joins.iterator().next()
+        assert 4 == graph.incomingEdgesOf(join).size()
+        def job5 = graph.vertexSet().find { it.name == "job5" }
+        assert [join] == graph.incomingEdgesOf(job5)*.source
+        // the flow build itself is not among the downstream builds
+        assert 6 == graph.vertexSet().findAll { !(it instanceof JobInvocation.Join) }.size()
+        assert [reloaded.startJob] == graph.vertexSet().findAll { it.name == name.getMethodName() && !(it instanceof JobInvocation.Join) }
+    }
+}
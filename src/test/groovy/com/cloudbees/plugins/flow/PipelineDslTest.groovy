@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import org.junit.Test
+
+import static hudson.model.Result.FAILURE
+import static hudson.model.Result.SUCCESS
+
+class PipelineDslTest extends DSLTestCase {
+
+    @Test
+    public void testPipeline() {
+        def jobs = createJobs(["compile-a", "compile-b", "test-a", "test-b", "deploy"])
+        def flow = run("""
+            def stages = pipeline(["a", "b"],
+                compile: { m -> build("compile-\$m") },
+                test:    { m -> build("test-\$m") }
+            )
+            assert ["compile", "test"] == stages.keySet() as List
+            assert ["a", "b"] == stages.test.keySet() as List
+            assert "test-b" == stages.test.b.lastBuild.name
+            build("deploy")
+        """)
+        assertAllSuccess(jobs)
+        assert SUCCESS == flow.result
+
+        def graph = flow.jobsGraph
+        def vertex = { name -> graph.vertexSet().find { it.name == name } }
+        // each test only depends on the compilation of the same item
+        assert ["compile-a"] == graph.incomingEdgesOf(vertex("test-a"))*.source*.name
+        assert ["compile-b"] == graph.incomingEdgesOf(vertex("test-b"))*.source*.name
+        assert ["test-a", "test-b"] == graph.incomingEdgesOf(vertex("deploy"))*.source*.name.sort()
+    }
+
+    @Test
+    public void testItemsDontWaitForEachOther() {
+        File f1 = new File("target", "${name.getMethodName()}_compile-b.lock")
+        f1.mkdirs()
+        f1.createNewFile()
+        try {
+            createJob("compile-a")
+            def compileB = createBlockingJob("compile-b", f1)
+            def testA = createJob("test-a")
+            createJob("test-b")
+            def future = schedule("""
+                pipeline(["a", "b"],
+                    compile: { m -> build("compile-\$m") },
+                    test:    { m -> build("test-\$m") }
+                )
+            """)
+            future.waitForStart()
+            // test-a runs while compile-b is still blocked
+            while (testA.lastBuild == null || testA.lastBuild.building) {
+                Thread.sleep(10L)
+            }
+            assert compileB.building
+            f1.delete()
+            def flow = future.get()
+            assert SUCCESS == flow.result
+        } finally {
+            f1.delete()
+        }
+    }
+
+    @Test
+    public void testFailedItemStops() {
+        def jobs = createJobs(["compile-a", "test-a"])
+        createFailJob("compile-b")
+        def testB = createJob("test-b")
+        def flow = run("""
+            def stages = pipeline(["a", "b"],
+                compile: { m -> build("compile-\$m") },
+                test:    { m -> build("test-\$m") }
+            )
+            assert FAILURE == stages.compile.b.result
+            assert ["a"] == stages.test.keySet() as List
+        """)
+        assertAllSuccess(jobs)
+        assertDidNotRun(testB)
+        assert FAILURE == flow.result
+    }
+}
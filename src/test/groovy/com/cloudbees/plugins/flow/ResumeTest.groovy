@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import jenkins.model.Jenkins
+import org.junit.Test
+
+import static hudson.model.Result.SUCCESS
+
+class ResumeTest extends DSLTestCase {
+
+    @Test
+    public void testCompletedBuildsAreNotTriggeredAgain() {
+        def jobs = createJobs(["job1", "job2"])
+        BuildFlow flow = createFlow("""
+            build("job1")
+            build("job2", param1: "a")
+        """)
+        def interrupted = flow.scheduleBuild2(0).get()
+        assert !FlowCheckpoint.fileOf(interrupted).exists()
+        def entries = FlowCheckpoint.snapshot(interrupted)
+        assert 2 == entries.size()
+        assert entries.every { it.completed }
+
+        def resumed = flow.scheduleBuild2(0, new FlowResumeCause(interrupted, entries)).get()
+
+        jenkinsRule.assertBuildStatus(SUCCESS, resumed)
+        jenkinsRule.assertLogContains("job1 resumed from the interrupted run", resumed)
+        jenkinsRule.assertLogContains("job2 resumed from the interrupted run", resumed)
+        jobs.each { assert 1 == it.builds.size() }
+        // the builds belong to the flow, they are not reused from elsewhere
+        def graph = JobsGraphFile.read(new File(resumed.rootDir, JobsGraphFile.FILE_NAME), resumed, resumed.startJob)
+        def builds = graph.vertices.findAll { it.name in ["job1", "job2"] }
+        assert 2 == builds.size()
+        assert builds.every { it.resumed && !it.reused }
+        // the checkpoint was only needed to replay the interrupted run
+        def cause = resumed.getCause(FlowResumeCause)
+        assert "Resumed build flow ${flow.fullName}#${interrupted.number}, interrupted by a restart" == cause.shortDescription
+        assert !new File(resumed.rootDir, "build.xml").text.contains("FlowCheckpoint")
+    }
+
+    @Test
+    public void testRunningBuildIsFollowed() {
+        File f = new File("target", "${name.methodName}.lock")
+        f.parentFile.mkdirs()
+        f.createNewFile()
+        def job1 = createJob("job1")
+        def job2 = createBlockingJob("job2", f)
+        BuildFlow flow = createFlow("""
+            build("job1")
+            build("job2")
+        """)
+        // the resumed run starts while the interrupted one is still waiting
+        flow.concurrentBuild = true
+        def future = flow.scheduleBuild2(0)
+        def interrupted = future.waitForStart()
+        while (!job2.building) {
+            Thread.sleep(10L)
+        }
+        def entries = FlowCheckpoint.snapshot(interrupted)
+        assert entries.find { it.key.endsWith(" job2") }.started
+
+        def resuming = flow.scheduleBuild2(0, new FlowResumeCause(interrupted, entries))
+        def resumed = resuming.waitForStart()
+        while (!resumed.log.contains("job2 resumed from the interrupted run")) {
+            Thread.sleep(10L)
+        }
+        f.delete()
+
+        jenkinsRule.assertBuildStatus(SUCCESS, resuming.get())
+        jenkinsRule.assertBuildStatus(SUCCESS, future.get())
+        assert 1 == job1.builds.size()
+        assert 1 == job2.builds.size()
+    }
+
+    @Test
+    public void testInterruptedFlowResumedOnStartup() {
+        def job1 = createJob("job1")
+        def job2 = createJob("job2")
+        BuildFlow flow = jenkinsRule.jenkins.createProject(BuildFlow, name.methodName)
+        flow.dsl = """
+            build("job1")
+            build("job2")
+        """
+        def interrupted = flow.scheduleBuild2(0).get()
+        // as if the flow had been interrupted after job1
+        def entries = FlowCheckpoint.snapshot(interrupted).findAll { it.key.endsWith(" job1") }
+        FlowCheckpoint.write(FlowCheckpoint.fileOf(interrupted), entries)
+
+        def startup = new FlowCheckpoint.ResumeOnStartup()
+        // as if Jenkins was restarted in the same JVM
+        startup.onBeforeShutdown()
+        startup.onLoaded()
+        assert !FlowCheckpoint.shuttingDown
+        jenkinsRule.waitUntilNoActivity()
+
+        def resumed = flow.lastBuild
+        assert interrupted.number + 1 == resumed.number
+        assert interrupted.number == resumed.getCause(FlowResumeCause).buildNumber
+        jenkinsRule.assertBuildStatus(SUCCESS, resumed)
+        assert !FlowCheckpoint.fileOf(interrupted).exists()
+        // the resumed run completed normally, it keeps no checkpoint
+        assert !FlowCheckpoint.fileOf(resumed).exists()
+        assert 1 == job1.builds.size()
+        assert 2 == job2.builds.size()
+    }
+
+    private BuildFlow createFlow(String dsl) {
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name.methodName)
+        flow.dsl = dsl
+        flow.onCreatedFromScratch()
+        return flow
+    }
+}
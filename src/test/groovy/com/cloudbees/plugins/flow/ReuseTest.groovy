@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.model.AbstractProject
+import hudson.model.ParametersAction
+import hudson.model.Run
+import hudson.model.TaskListener
+import hudson.scm.SCM
+import hudson.scm.SCMRevisionState
+import hudson.util.StreamTaskListener
+import org.junit.Test
+
+import static hudson.model.Result.FAILURE
+import static hudson.model.Result.SUCCESS
+import static org.mockito.Mockito.*
+
+class ReuseTest extends DSLTestCase {
+
+    @Test
+    public void testReusesBuildWithSameInputs() {
+        def job1 = createJob("job1")
+        def flow = run("""
+            build("job1", param1: "a", reuse: true)
+            build("job1", param1: "a", reuse: true)
+            build("job1", param1: "b", reuse: true)
+        """)
+
+        jenkinsRule.assertBuildStatus(SUCCESS, flow)
+        assert 2 == job1.builds.size()
+        assertHasParameter(job1.builds.getBuildByNumber(1), "param1", "a")
+        assertHasParameter(job1.builds.getBuildByNumber(2), "param1", "b")
+        jenkinsRule.assertLogContains("job1 #1 reused", flow)
+        def reused = flow.jobsGraph.vertexSet().findAll { it.reused }
+        assert 1 == reused.size()
+        assert 1 == reused.iterator().next().buildNumber
+        assert !job1.builds.getBuildByNumber(1).actions.any { it instanceof ParametersAction && it.getParameter("reuse") }
+    }
+
+    @Test
+    public void testFailedBuildIsNotReused() {
+        def job1 = createFailJob("job1", 1)
+        def flow = run("""
+            ignore(FAILURE) {
+                build("job1", reuse: true)
+            }
+            build("job1", reuse: true)
+        """)
+
+        jenkinsRule.assertBuildStatus(SUCCESS, flow)
+        assert 2 == job1.builds.size()
+        jenkinsRule.assertLogContains("no recent successful build has the same parameters and SCM revision", flow)
+    }
+
+    @Test
+    public void testReuseOptionAsString() {
+        def job1 = createJob("job1")
+        def flow = run("""
+            build("job1", param1: "a")
+            build("job1", param1: "a", reuse: "false")
+            build("job1", param1: "a", reuse: "true")
+        """)
+
+        jenkinsRule.assertBuildStatus(SUCCESS, flow)
+        assert 2 == job1.builds.size()
+        jenkinsRule.assertLogContains("job1 #2 reused", flow)
+    }
+
+    @Test
+    public void testInvalidReuseOption() {
+        createJob("job1")
+        def flow = run("""
+            build("job1", reuse: "yes")
+        """)
+
+        assert FAILURE == flow.result
+        jenkinsRule.assertLogContains("reuse must be true or false, got yes", flow)
+    }
+
+    @Test
+    public void testBuildAsyncReuse() {
+        def job1 = createJob("job1")
+        def flow = run("""
+            build("job1", param1: "a")
+            join(buildAsync("job1", param1: "a", reuse: true, continueOnCompletion: true))
+        """)
+
+        jenkinsRule.assertBuildStatus(SUCCESS, flow)
+        assert 1 == job1.builds.size()
+        jenkinsRule.assertLogContains("job1 #1 reused", flow)
+        def build = job1.builds.getBuildByNumber(1)
+        assert !build.actions.any { it instanceof ParametersAction && it.getParameter("reuse") }
+        assert !build.actions.any { it instanceof ParametersAction && it.getParameter("continueOnCompletion") }
+    }
+
+    @Test
+    public void testNoReuseWithoutRevision() {
+        AbstractProject project = mock(AbstractProject)
+        when(project.getScm()).thenReturn(mock(SCM))
+        when(project.getFullDisplayName()).thenReturn("job1")
+        // as git records it
+        Run last = mock(Run)
+        when(last.getAction(SCMRevisionState)).thenReturn(SCMRevisionState.NONE)
+        when(project.getLastBuild()).thenReturn(last)
+
+        def out = new ByteArrayOutputStream()
+        assert null == BuildReuseIndex.lookup(project, [], new StreamTaskListener(out))
+        when(last.getAction(SCMRevisionState)).thenReturn(null)
+        assert null == BuildReuseIndex.lookup(project, [], new StreamTaskListener(out))
+
+        def log = out.toString()
+        assert 2 == log.count("No build of job1 reused, its SCM doesn't record the revision a build checked out")
+        verify(project, never()).poll(any(TaskListener))
+    }
+
+    @Test
+    public void testBuildsAgainWithoutReuse() {
+        def job1 = createJob("job1")
+        def flow = run("""
+            build("job1", param1: "a")
+            build("job1", param1: "a")
+        """)
+
+        jenkinsRule.assertBuildStatus(SUCCESS, flow)
+        assert 2 == job1.builds.size()
+    }
+}
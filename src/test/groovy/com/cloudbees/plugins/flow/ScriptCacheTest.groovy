@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import jenkins.model.Jenkins
+
+import static hudson.model.Result.SUCCESS
+import org.junit.Test
+
+class ScriptCacheTest extends DSLTestCase {
+
+    @Test
+    public void testScriptCompiledOnce() {
+        def job1 = createJob("job1")
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name.getMethodName())
+        flow.dsl = """ build("job1", param1: build.number) """
+        flow.onCreatedFromScratch()
+
+        def misses = FlowScriptCache.get().misses
+        def hits = FlowScriptCache.get().hits
+        assert SUCCESS == flow.scheduleBuild2(0).get().result
+        assert SUCCESS == flow.scheduleBuild2(0).get().result
+
+        assert misses + 1 == FlowScriptCache.get().misses
+        assert hits + 1 == FlowScriptCache.get().hits
+        // each run still gets its own script instance and delegate
+        assertHasParameter(job1.builds[1], "param1", "1")
+        assertHasParameter(job1.builds[0], "param1", "2")
+    }
+
+    @Test
+    public void testScriptRecompiledWhenDslChanges() {
+        def jobs = createJobs(["job1", "job2"])
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name.getMethodName())
+        flow.dsl = """ build("job1") """
+        flow.onCreatedFromScratch()
+        assert SUCCESS == flow.scheduleBuild2(0).get().result
+
+        def misses = FlowScriptCache.get().misses
+        flow.dsl = """ build("job2") """
+        assert SUCCESS == flow.scheduleBuild2(0).get().result
+
+        assert misses + 1 == FlowScriptCache.get().misses
+        assertAllSuccess(jobs)
+    }
+
+    @Test
+    public void testDslFileTransferredOnlyWhenChanged() {
+        def jobs = createJobs(["job1", "job2"])
+        def agent = jenkinsRule.createOnlineSlave()
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name.getMethodName())
+        flow.assignedNode = agent
+        flow.buildNeedsWorkspace = true
+        flow.dslFile = "flow.groovy"
+        flow.onCreatedFromScratch()
+        def workspace = agent.getWorkspaceFor(flow)
+        workspace.child("flow.groovy").write(""" build("job1"); load("helper.groovy") """, "UTF-8")
+        workspace.child("helper.groovy").write(""" build("job2") """, "UTF-8")
+
+        def cache = WorkspaceFileCache.get()
+        def misses = cache.misses
+        def hits = cache.hits
+        assert SUCCESS == flow.scheduleBuild2(0).get().result
+        // the flow script and its helper
+        assert misses + 2 == cache.misses
+
+        def compiled = FlowScriptCache.get().misses
+        assert SUCCESS == flow.scheduleBuild2(0).get().result
+        assert misses + 2 == cache.misses
+        assert hits + 2 == cache.hits
+        assert compiled == FlowScriptCache.get().misses
+
+        workspace.child("helper.groovy").write(""" build("job1") """, "UTF-8")
+        assert SUCCESS == flow.scheduleBuild2(0).get().result
+        assert misses + 3 == cache.misses
+        assert compiled + 1 == FlowScriptCache.get().misses
+        assert 3 == jobs[0].builds.size()
+        assert 2 == jobs[1].builds.size()
+    }
+}
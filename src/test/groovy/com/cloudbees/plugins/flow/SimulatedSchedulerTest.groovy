@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import jenkins.model.Jenkins
+import org.junit.Test
+
+import static hudson.model.Result.ABORTED
+import static hudson.model.Result.FAILURE
+import static hudson.model.Result.SUCCESS
+import static hudson.model.Result.UNSTABLE
+
+class SimulatedSchedulerTest extends DSLTestCase {
+
+    def runSimulated = { scheduler, script ->
+        BuildFlow flow = new BuildFlow(Jenkins.instance, name.getMethodName())
+        flow.dsl = script
+        flow.scheduler = scheduler
+        flow.onCreatedFromScratch() // need this to updateTransientActions
+        return flow.scheduleBuild2(0).get()
+    }
+
+    @Test
+    public void testLargeFlow() {
+        def jobs = createJobs((1..10).collect { "job$it" })
+        def scheduler = new SimulatedFlowScheduler(8)
+        scheduler.queueTime = SimulatedFlowScheduler.Distribution.uniform(0, 5)
+        scheduler.buildTime = SimulatedFlowScheduler.Distribution.exponential(5)
+        try {
+            def flow = runSimulated(scheduler, """
+                50.times { i ->
+                    parallel((1..10).collect { j -> { -> build("job\$j", round: i) } })
+                }
+            """)
+            assert SUCCESS == flow.result
+            assert 500 == scheduler.scheduledCount
+            assert 500 == scheduler.completedCount
+            assert 501 == flow.jobsGraph.vertexSet().size()
+            // none of the jobs actually built
+            jobs.each { assertDidNotRun(it) }
+        } finally {
+            scheduler.shutdown()
+        }
+    }
+
+    @Test
+    public void testBoundedFanOut() {
+        createJob("job1")
+        def scheduler = new SimulatedFlowScheduler(8)
+        scheduler.buildTime = SimulatedFlowScheduler.Distribution.uniform(0, 5)
+        try {
+            def flow = runSimulated(scheduler, """
+                def states = parallelEach(1..500, 20) { i -> build("job1", item: i) }
+                assert 500 == states.size()
+            """)
+            assert SUCCESS == flow.result
+            assert 500 == scheduler.completedCount
+            assert scheduler.peakInFlight <= 20
+        } finally {
+            scheduler.shutdown()
+        }
+    }
+
+    @Test
+    public void testLongestFirstMakespan() {
+        def names = (1..7).collect { "short$it" } + ["long"]
+        names.each { createJob(it) }
+        def scheduler = new SimulatedFlowScheduler()
+        scheduler.buildTime = SimulatedFlowScheduler.Distribution.fixed(100)
+        scheduler.setBuildTime("long", SimulatedFlowScheduler.Distribution.fixed(700))
+        BuildFlow project = new BuildFlow(Jenkins.instance, name.getMethodName())
+        project.scheduler = scheduler
+        project.onCreatedFromScratch()
+        def jobs = names.collect { "\"$it\"" }.join(", ")
+        boolean enabled = CriticalPathQueueSorter.ENABLED
+        CriticalPathQueueSorter.ENABLED = true
+        try {
+            // two slots: the long build starts once 6 short ones are done in closure order, right away longest first
+            project.dsl = """parallelEach([${jobs}], 2) { name -> build(name) }"""
+            long start = scheduler.clock
+            def inOrder = project.scheduleBuild2(0).get()
+            long inOrderMakespan = scheduler.clock - start
+            project.dsl = """parallelEach(order: 'longestFirst', [${jobs}], 2) { name -> build(name) }"""
+            start = scheduler.clock
+            def longestFirst = project.scheduleBuild2(0).get()
+            long longestFirstMakespan = scheduler.clock - start
+
+            assert SUCCESS == inOrder.result
+            assert SUCCESS == longestFirst.result
+            // in simulated time, 1000 ms against 700 ms, or a little more if the real time overhead of the short
+            // builds delays the last ones past the completion of the long build
+            assert 1000 == inOrderMakespan
+            assert longestFirstMakespan < inOrderMakespan
+
+            // the long build is on the critical path, the short ones have 600 ms of slack
+            def hints = longestFirst.jobsGraph.vertexSet().findAll { it.started && it.name != project.fullName }
+                    .collectEntries { [it.name, it.build.getAction(CriticalPathAction).criticalPath] }
+            assert 700 == hints["long"]
+            assert 100 == hints["short1"]
+            assert inOrder.jobsGraph.vertexSet().every { !it.started || it.build.getAction(CriticalPathAction) == null }
+        } finally {
+            CriticalPathQueueSorter.ENABLED = enabled
+            scheduler.shutdown()
+        }
+    }
+
+    @Test
+    public void testResultDistribution() {
+        def job1 = createJob("job1")
+        createJob("job2")
+        def scheduler = new SimulatedFlowScheduler()
+        scheduler.addResult(null, UNSTABLE, 1)
+        scheduler.addResult("job2", FAILURE, 1)
+        try {
+            def flow = runSimulated(scheduler, """
+                def b = build("job1")
+                assert b.result == UNSTABLE
+                ignore(FAILURE) {
+                    build("job2")
+                }
+                build("job1")
+            """)
+            assert UNSTABLE == flow.result
+            assert 3 == scheduler.completedCount
+            assertDidNotRun(job1)
+        } finally {
+            scheduler.shutdown()
+        }
+    }
+
+    @Test
+    public void testAbort() {
+        createJobs(["job1", "job2", "job3"])
+        def scheduler = new SimulatedFlowScheduler()
+        // both branches run for a minute, unless aborted
+        scheduler.queueTime = SimulatedFlowScheduler.Distribution.fixed(0)
+        scheduler.buildTime = SimulatedFlowScheduler.Distribution.fixed(60000)
+        try {
+            BuildFlow project = new BuildFlow(Jenkins.instance, name.getMethodName())
+            project.dsl = """
+                parallel(
+                    { build("job1") },
+                    { build("job2") }
+                )
+                build("job3")
+            """
+            project.scheduler = scheduler
+            project.onCreatedFromScratch()
+            def future = project.scheduleBuild2(0)
+            def flow = future.waitForStart()
+            while (scheduler.scheduledCount < 2) {
+                Thread.sleep(10L)
+            }
+
+            flow.oneOffExecutor.interrupt(ABORTED)
+            future.get()
+
+            jenkinsRule.assertBuildStatus(ABORTED, flow)
+            assert 2 == scheduler.scheduledCount
+            assert flow.jobsGraph.vertexSet().every { it.name != "job3" }
+            assert flow.jobsGraph.vertexSet().findAll { it.name != name.getMethodName() }.every {
+                it.result == ABORTED || !it.started
+            }
+        } finally {
+            scheduler.shutdown()
+        }
+    }
+}
@@ -49,8 +49,16 @@ public class BlockingBuilder extends Builder {
 
     public final File file;
 
+    // keep blocking when the build is aborted
+    public final boolean ignoreInterrupts;
+
     BlockingBuilder(File file) {
+        this(file, false);
+    }
+
+    BlockingBuilder(File file, boolean ignoreInterrupts) {
         this.file = file;
+        this.ignoreInterrupts = ignoreInterrupts;
     }
 
 
@@ -59,7 +67,13 @@ public class BlockingBuilder extends Builder {
         try {
             System.out.println("Blocking Builder in build " + build.getFullDisplayName() + "waiting");
             while (file.exists()) {
-                Thread.sleep(10L);
+                try {
+                    Thread.sleep(10L);
+                } catch (InterruptedException ex) {
+                    if (!ignoreInterrupts) {
+                        throw ex;
+                    }
+                }
             }
             build.setResult(SUCCESS);
         } catch (InterruptedException ex) {